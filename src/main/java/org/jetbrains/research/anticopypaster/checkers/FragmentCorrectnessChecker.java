@@ -1,15 +1,37 @@
 package org.jetbrains.research.anticopypaster.checkers;
 
+import com.intellij.lang.java.JavaLanguage;
+import com.intellij.lang.java.lexer.JavaLexer;
+import com.intellij.lexer.Lexer;
 import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Key;
+import com.intellij.pom.java.LanguageLevel;
+import com.intellij.psi.JavaRecursiveElementWalkingVisitor;
+import com.intellij.psi.JavaPsiFacade;
+import com.intellij.psi.JavaTokenType;
+import com.intellij.psi.PsiCodeBlock;
 import com.intellij.psi.PsiElement;
+import com.intellij.psi.PsiErrorElement;
 import com.intellij.psi.PsiFile;
 import com.intellij.psi.PsiFileFactory;
-import com.intellij.psi.impl.source.tree.PsiErrorElementImpl;
+import com.intellij.psi.PsiIdentifier;
+import com.intellij.psi.PsiLocalVariable;
+import com.intellij.psi.PsiMethod;
+import com.intellij.psi.TokenType;
+import com.intellij.psi.tree.IElementType;
 import com.intellij.util.IncorrectOperationException;
+import org.jetbrains.research.anticopypaster.utils.FragmentAnalysisCache;
 
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 
+/**
+ * Checks that a code fragment is a correct sequence of statements, and collects its local variables and identifiers.
+ * Java fragments are first checked for balanced brackets by the lexer, and only then parsed as a code block.
+ * The results are kept in {@link FragmentAnalysisCache}, since the same fragment is often checked more than once.
+ */
 public class FragmentCorrectnessChecker {
     private static final String wrapperFormat = "class Tmp {\n" +
             "    public static void main(String[] args) {\n" +
@@ -17,11 +39,101 @@ public class FragmentCorrectnessChecker {
             "    }\n" +
             "}";
 
+    // Neither the correctness nor the names depend on the whitespaces, so the result is shared by such fragments
+    private static final Key<CheckResult> CHECK_RESULT = Key.create("anticopypaster.fragment.correctness");
+
     public static boolean isCorrect(Project project,
                                     PsiFile file,
                                     String fragment,
                                     HashSet<String> vars_in_fragment,
                                     HashMap<String, Integer> vars_counts_in_fragment) {
+        if (!file.getLanguage().isKindOf(JavaLanguage.INSTANCE)) {
+            return isCorrectWrapped(project, file, fragment, vars_in_fragment, vars_counts_in_fragment);
+        }
+        CheckResult result = FragmentAnalysisCache.getInstance().get(fragment)
+                .getOrCompute(CHECK_RESULT, () -> check(project, fragment));
+        vars_in_fragment.addAll(result.variables);
+        result.identifierCounts.forEach((identifier, count) ->
+                vars_counts_in_fragment.merge(identifier, count, Integer::sum));
+        return result.correct;
+    }
+
+    /**
+     * Parses the Java fragment as the statements of a code block, unless its brackets are unbalanced.
+     */
+    private static CheckResult check(Project project, String fragment) {
+        if (!hasBalancedBrackets(fragment)) {
+            return CheckResult.INCORRECT;
+        }
+        PsiCodeBlock codeBlock;
+        try {
+            codeBlock = JavaPsiFacade.getElementFactory(project)
+                    .createCodeBlockFromText("{\n" + fragment + "\n}", null);
+        } catch (IncorrectOperationException e) {
+            return CheckResult.INCORRECT;
+        }
+
+        CheckResult result = new CheckResult();
+        codeBlock.accept(new JavaRecursiveElementWalkingVisitor() {
+            @Override
+            public void visitErrorElement(PsiErrorElement element) {
+                result.correct = false;
+                stopWalking();
+            }
+
+            @Override
+            public void visitLocalVariable(PsiLocalVariable variable) {
+                super.visitLocalVariable(variable);
+                result.variables.add(variable.getName());
+            }
+
+            @Override
+            public void visitIdentifier(PsiIdentifier identifier) {
+                result.identifierCounts.merge(identifier.getText(), 1, Integer::sum);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Returns false if the fragment has a bad character or different numbers of opening and closing brackets
+     * of some kind, outside of literals and comments. Such a fragment can't be parsed without errors.
+     */
+    private static boolean hasBalancedBrackets(String fragment) {
+        int braces = 0;
+        int parentheses = 0;
+        int brackets = 0;
+        Lexer lexer = new JavaLexer(LanguageLevel.HIGHEST);
+        lexer.start(fragment);
+        for (IElementType tokenType = lexer.getTokenType(); tokenType != null; tokenType = lexer.getTokenType()) {
+            if (tokenType == TokenType.BAD_CHARACTER) {
+                return false;
+            } else if (tokenType == JavaTokenType.LBRACE) {
+                braces++;
+            } else if (tokenType == JavaTokenType.RBRACE) {
+                braces--;
+            } else if (tokenType == JavaTokenType.LPARENTH) {
+                parentheses++;
+            } else if (tokenType == JavaTokenType.RPARENTH) {
+                parentheses--;
+            } else if (tokenType == JavaTokenType.LBRACKET) {
+                brackets++;
+            } else if (tokenType == JavaTokenType.RBRACKET) {
+                brackets--;
+            }
+            lexer.advance();
+        }
+        return braces == 0 && parentheses == 0 && brackets == 0;
+    }
+
+    /**
+     * Checks a fragment of a file in another language by wrapping it into a method and parsing it as a whole file.
+     */
+    private static boolean isCorrectWrapped(Project project,
+                                            PsiFile file,
+                                            String fragment,
+                                            HashSet<String> vars_in_fragment,
+                                            HashMap<String, Integer> vars_counts_in_fragment) {
         String wrappedFragment = String.format(wrapperFormat, fragment);
         PsiFile tmp;
         try {
@@ -42,18 +154,15 @@ public class FragmentCorrectnessChecker {
                                     boolean inside,
                                     HashSet<String> vars_in_fragment,
                                     HashMap<String, Integer> vars_counts_in_fragment) {
-        boolean result = !(node instanceof PsiErrorElementImpl);
-
-        String nodeText = node.toString();
+        boolean result = !(node instanceof PsiErrorElement);
 
         if (inside) {
-            if (nodeText.contains("PsiLocalVariable")) {
-                String var = nodeText.split(":")[1];
-                vars_in_fragment.add(var);
+            if (node instanceof PsiLocalVariable) {
+                vars_in_fragment.add(((PsiLocalVariable) node).getName());
             }
 
-            if (nodeText.contains("PsiIdentifier")) {
-                String var = nodeText.split(":")[1];
+            if (node instanceof PsiIdentifier) {
+                String var = node.getText();
                 vars_counts_in_fragment.put(var, vars_counts_in_fragment.getOrDefault(var, 0) + 1);
             }
         }
@@ -62,9 +171,25 @@ public class FragmentCorrectnessChecker {
 
         for (PsiElement child : children) {
             result &=
-                    traverse(child, nodeText.contains("PsiMethod") || inside, vars_in_fragment, vars_counts_in_fragment);
+                    traverse(child, node instanceof PsiMethod || inside, vars_in_fragment, vars_counts_in_fragment);
         }
 
         return result;
     }
+
+    private static final class CheckResult {
+        private static final CheckResult INCORRECT = new CheckResult(false);
+
+        private boolean correct;
+        private final Set<String> variables = new HashSet<>();
+        private final Map<String, Integer> identifierCounts = new HashMap<>();
+
+        private CheckResult() {
+            this(true);
+        }
+
+        private CheckResult(boolean correct) {
+            this.correct = correct;
+        }
+    }
 }
@@ -3,13 +3,18 @@ package org.jetbrains.research.anticopypaster.ide;
 import com.intellij.codeInsight.editorActions.CopyPastePreProcessor;
 import com.intellij.ide.DataManager;
 import com.intellij.openapi.actionSystem.CommonDataKeys;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.ReadAction;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.editor.Caret;
 import com.intellij.openapi.editor.Editor;
+import com.intellij.openapi.editor.RangeMarker;
 import com.intellij.openapi.editor.RawText;
+import com.intellij.openapi.progress.ProcessCanceledException;
 import com.intellij.openapi.project.Project;
 import com.intellij.psi.PsiFile;
 import com.intellij.psi.PsiMethod;
+import com.intellij.util.concurrency.AppExecutorUtil;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.jetbrains.research.anticopypaster.checkers.FragmentCorrectnessChecker;
@@ -17,25 +22,21 @@ import org.jetbrains.research.anticopypaster.statistics.AntiCopyPasterUsageStati
 
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Timer;
+import java.util.concurrent.CancellationException;
 
 import static org.jetbrains.research.anticopypaster.utils.PsiUtil.findMethodByOffset;
 import static org.jetbrains.research.anticopypaster.utils.PsiUtil.getCountOfCodeLines;
+import static org.jetbrains.research.anticopypaster.utils.PsiUtil.removeWhitespaces;
 
 /**
  * Handles any copy-paste action and checks if the pasted code fragment could be extracted into a separate method.
  */
 public class AntiCopyPastePreProcessor implements CopyPastePreProcessor {
     private final DuplicatesInspection inspection = new DuplicatesInspection();
-    private final Timer timer = new Timer(true);
-    private final RefactoringNotificationTask refactoringNotificationTask = new RefactoringNotificationTask(inspection, timer);
+    private final RefactoringNotificationTask refactoringNotificationTask = new RefactoringNotificationTask(inspection);
 
     private static final Logger LOG = Logger.getInstance(AntiCopyPastePreProcessor.class);
 
-    public AntiCopyPastePreProcessor() {
-        setCheckingForRefactoringOpportunities();
-    }
-
     /**
      * Triggers on each copy action.
      */
@@ -48,51 +49,104 @@ public class AntiCopyPastePreProcessor implements CopyPastePreProcessor {
 
     /**
      * Triggers on each paste action to search for duplicates and check the Extract Method refactoring opportunities
-     * for a copied-pasted code fragment.
+     * for a copy-pasted code fragment. The paste itself is never delayed: the fragment is analyzed in a background
+     * non-blocking read action, which is restarted if interrupted by a write action and cancelled by a newer paste into
+     * the same file.
+     * The analysis is started after the pasted text is inserted and runs once the document is committed, so it always
+     * sees the file with the pasted copy, which is counted among the duplicates like in the notification task.
      */
     @NotNull
     @Override
     public String preprocessOnPaste(Project project, PsiFile file, Editor editor, String text, RawText rawText) {
-        HashSet<String> variablesInCodeFragment = new HashSet<>();
-        HashMap<String, Integer> variablesCountsInCodeFragment = new HashMap<>();
-
         AntiCopyPasterUsageStatistics.getInstance(project).onPaste();
 
-        if (editor == null || file == null || !FragmentCorrectnessChecker.isCorrect(project, file,
-                text,
-                variablesInCodeFragment,
-                variablesCountsInCodeFragment)) {
+        if (editor == null || file == null) {
             return text;
         }
 
         @Nullable Caret caret = CommonDataKeys.CARET.getData(DataManager.getInstance().getDataContext());
         int offset = caret == null ? 0 : caret.getOffset();
         PsiMethod destinationMethod = findMethodByOffset(file, offset);
-
-        // find number of code fragments considered as duplicated
-        DuplicatesInspection.InspectionResult result = inspection.resolve(file, text);
-        if (result.getDuplicatesCount() == 0) {
-            return text;
+        // Empty and greedy, so that it grows to the pasted text once it's inserted, replacing the selection if any
+        RangeMarker pastedRange = null;
+        if (caret != null) {
+            pastedRange = editor.getDocument().createRangeMarker(caret.getSelectionStart(), caret.getSelectionStart());
+            pastedRange.setGreedyToLeft(true);
+            pastedRange.setGreedyToRight(true);
         }
-
-        //number of lines in fragment
-        int linesOfCode = getCountOfCodeLines(text);
-
-        refactoringNotificationTask.addEvent(
-                new RefactoringEvent(file, destinationMethod, text, result.getDuplicatesCount(),
-                        project, editor, linesOfCode));
+        RangeMarker finalPastedRange = pastedRange;
+
+        // The text is inserted by the paste action after this method returns
+        ApplicationManager.getApplication().invokeLater(() -> {
+            if (finalPastedRange != null) {
+                // The text typed next to the pasted one isn't a part of it
+                finalPastedRange.setGreedyToLeft(false);
+                finalPastedRange.setGreedyToRight(false);
+            }
+            ReadAction.nonBlocking(() -> createRefactoringEvent(project, file, editor, text, destinationMethod,
+                        finalPastedRange))
+                    .withDocumentsCommitted(project)
+                    // Only a new paste of the same fragment into the file supersedes the analysis, like in the task queue
+                    .coalesceBy(this, file, removeWhitespaces(text))
+                    .expireWith(project)
+                    .submit(AppExecutorUtil.getAppExecutorService())
+                    .onSuccess(event -> {
+                        if (event != null) {
+                            refactoringNotificationTask.addEvent(event);
+                        }
+                    })
+                    .onError(e -> {
+                        // Coalesced and expired analyses are cancelled, this is not an error
+                        if (!(e instanceof CancellationException) && !(e instanceof ProcessCanceledException)) {
+                            LOG.warn("[ACP] Failed to analyze a pasted code fragment.", e);
+                        }
+                    });
+        }, project.getDisposed());
 
         return text;
     }
 
     /**
-     * Sets the regular checking for Extract Method refactoring opportunities.
+     * Checks the pasted code fragment and creates an event for it if it has duplicates.
+     * Runs in a non-blocking read action, which is cancelled when a write action starts, so the duplicates search
+     * waiting for its chunks here can't block the write action.
+     *
+     * @return the event to process, or null if the fragment can't be extracted.
      */
-    private void setCheckingForRefactoringOpportunities() {
-        try {
-            timer.schedule(refactoringNotificationTask, 15000, 15000);
-        } catch (Exception ex) {
-            LOG.error("[ACP] Failed to schedule the checking for refactorings.", ex.getMessage());
+    @Nullable
+    private RefactoringEvent createRefactoringEvent(Project project, PsiFile file, Editor editor, String text,
+                                                    PsiMethod destinationMethod, @Nullable RangeMarker pastedRange) {
+        if (!file.isValid()) {
+            return null;
         }
+        // The stamp of the PSI, unlike the one of the document, describes the PSI read under this read action
+        long modificationStamp = file.getModificationStamp();
+
+        HashSet<String> variablesInCodeFragment = new HashSet<>();
+        HashMap<String, Integer> variablesCountsInCodeFragment = new HashMap<>();
+
+        if (!FragmentCorrectnessChecker.isCorrect(project, file,
+                text,
+                variablesInCodeFragment,
+                variablesCountsInCodeFragment)) {
+            return null;
+        }
+
+        // find number of code fragments considered as duplicated, including the pasted one,
+        // the search stops at the number needed by the notification task, so that it can reuse the result
+        DuplicatesInspection.InspectionResult result =
+                inspection.resolve(file, text, RefactoringNotificationTask.MIN_DUPLICATES_COUNT);
+        if (result.getDuplicatesCount() < RefactoringNotificationTask.MIN_DUPLICATES_COUNT) {
+            return null;
+        }
+
+        //number of lines in fragment
+        int linesOfCode = getCountOfCodeLines(text);
+
+        RefactoringEvent event = new RefactoringEvent(file, destinationMethod, text, result.getDuplicatesCount(),
+                project, editor, linesOfCode);
+        event.setAnalysis(modificationStamp, result);
+        event.setPastedRange(pastedRange);
+        return event;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,19 @@
+package org.jetbrains.research.anticopypaster.ide;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Decides whether a method contains a duplicate of a pasted piece of code.
+ * Implementations are stateless and are called concurrently for different methods,
+ * and should only use the data precomputed in {@link PastedFragment} and {@link MethodTokenIndex.MethodEntry}.
+ */
+public interface DuplicateDetectionEngine {
+
+    /**
+     * @param fragment the pasted piece of code.
+     * @param method   the precomputed data of the method to check.
+     * @return the duplicate found in the method, or null if the method doesn't contain one.
+     */
+    @Nullable
+    DuplicatesInspection.DuplicateResult findDuplicate(PastedFragment fragment, MethodTokenIndex.MethodEntry method);
+}
@@ -1,55 +1,142 @@
 package org.jetbrains.research.anticopypaster.ide;
 
-import com.intellij.openapi.application.ApplicationManager;
-import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.concurrency.SensitiveProgressWrapper;
+import com.intellij.openapi.application.ReadAction;
+import com.intellij.openapi.progress.EmptyProgressIndicator;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.project.DumbService;
+import com.intellij.openapi.project.Project;
 import com.intellij.openapi.util.Computable;
-import com.intellij.openapi.util.text.StringUtil;
-import com.intellij.psi.PsiCodeBlock;
+import com.intellij.openapi.util.registry.Registry;
 import com.intellij.psi.PsiFile;
 import com.intellij.psi.PsiMethod;
-import com.intellij.psi.util.PsiTreeUtil;
-import org.apache.commons.lang.StringUtils;
-import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.research.anticopypaster.utils.SimilarityMeasure;
 
-import java.util.Collection;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Objects;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.stream.Collectors;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.function.BooleanSupplier;
 
 public final class DuplicatesInspection {
-    private static final Logger LOG = Logger.getInstance(AntiCopyPastePreProcessor.class);
+    private static final String ENGINE_REGISTRY_KEY = "anticopypaster.duplicates.engine";
+    private static final String SIMILARITY_REGISTRY_KEY = "anticopypaster.duplicates.similarity";
+    private static final String PROJECT_SCOPE_REGISTRY_KEY = "anticopypaster.duplicates.projectScope";
 
-    private final ThreadPoolExecutor pool = (ThreadPoolExecutor) Executors.newFixedThreadPool(8);
+    private final DuplicateDetectionEngine engine;
+
+    /**
+     * Creates an inspection that uses the engine selected by the {@code anticopypaster.duplicates.engine}
+     * and {@code anticopypaster.duplicates.similarity} registry keys on each search.
+     */
+    public DuplicatesInspection() {
+        this(null);
+    }
+
+    /**
+     * Creates an inspection that always uses the given engine.
+     */
+    public DuplicatesInspection(@Nullable DuplicateDetectionEngine engine) {
+        this.engine = engine;
+    }
 
     /**
      * Searches for duplicates in methods extracted from the file.
-     * First, it checks if a method contains the copy-pasted piece of code as a substring,
-     * and if doesn't then it collects the bags of words of a method and a piece of code and calculates their
-     * similarity.
+     * Each method is checked by the {@link DuplicateDetectionEngine}: the default one checks if a method contains
+     * the copy-pasted piece of code as a substring, and if doesn't then it collects the bags of words of a method
+     * and a piece of code and calculates their similarity.
+     * The methods are tokenized once and kept in {@link MethodTokenIndex}, so only the piece of code is processed
+     * on each call.
+     * If the {@code anticopypaster.duplicates.projectScope} registry key is set, the methods of the whole project
+     * are searched instead, by the fingerprints stored in {@link MethodFingerprintIndex}. The project-wide search
+     * always compares the winnowing fingerprints, whichever engine is selected. The fragments that are too short,
+     * or whose fingerprints are all too common, are searched for in the file only.
+     * The methods are checked in parallel on the {@link DuplicatesSearchExecutor} of the project,
+     * and the search stops if the progress indicator of the calling thread is cancelled.
      *
      * @param file to search duplicates in.
      * @param code the piece of code to search for.
      * @return the result of duplicates' detection.
      */
     public InspectionResult resolve(PsiFile file, final String code) {
-        final List<String> tokensOfPastedCode = getTokens(code);
-        @NotNull Collection<PsiMethod> methods = PsiTreeUtil.findChildrenOfType(file, PsiMethod.class);
-        final List<DuplicateResult> results = methods.stream()
-                .map(method -> new DuplicateResultComputable(code, method, tokensOfPastedCode))
-                .map(computable -> pool.submit(() -> ApplicationManager.getApplication().runReadAction(computable)))
-                .map(future -> {
-                    try {
-                        return future.get();
-                    } catch (Exception e) {
-                        LOG.warn("[ACP] Failed while searching for code duplicates.", e);
-                        return null;
-                    }
-                })
-                .filter(Objects::nonNull)
-                .collect(Collectors.toList());
-        return new InspectionResult(results);
+        return resolve(file, code, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Searches for duplicates like {@link #resolve(PsiFile, String)}, but stops as soon as the required number
+     * of duplicates is found: the methods that are not checked yet are skipped, and the running checks are cancelled.
+     * The methods are split into one chunk per core, and each chunk is checked under a single read action.
+     * Should be called either outside a read action, or inside a cancellable one, so that the chunks can acquire
+     * their read actions.
+     *
+     * @param file               to search duplicates in.
+     * @param code               the piece of code to search for.
+     * @param requiredDuplicates the number of duplicates after which the search stops.
+     * @return the result of duplicates' detection, which is incomplete if the search stopped early.
+     */
+    public InspectionResult resolve(PsiFile file, final String code, int requiredDuplicates) {
+        final Project project = file.getProject();
+        final DuplicateDetectionEngine engine = getEngine();
+        final PastedFragment fragment = PastedFragment.of(code);
+        if (isProjectScopeAvailable(project, fragment)) {
+            InspectionResult projectResult = ReadAction.compute(() ->
+                    MethodFingerprintIndex.findDuplicates(project, fragment, requiredDuplicates));
+            if (projectResult != null) {
+                return projectResult;
+            }
+            // The fragment is too common to be searched for in the whole project, so only its file is searched
+        }
+
+        MethodTokenIndex index = MethodTokenIndex.getInstance(project);
+        List<PsiMethod> methods = ReadAction.compute(() -> index.getMethods(file));
+        DuplicatesSearchExecutor executor = DuplicatesSearchExecutor.getInstance(project);
+        int parallelism = DuplicatesSearchExecutor.getParallelism();
+        int chunkSize = Math.max(1, (methods.size() + parallelism - 1) / parallelism);
+        Queue<DuplicateResult> duplicates = new ConcurrentLinkedQueue<>();
+        BooleanSupplier enoughDuplicates = () -> duplicates.size() >= requiredDuplicates;
+
+        // Cancelled either together with the calling thread, or as soon as enough duplicates are found
+        ProgressIndicator parentIndicator = ProgressManager.getGlobalProgressIndicator();
+        ProgressIndicator searchIndicator = parentIndicator == null
+                ? new EmptyProgressIndicator()
+                : new SensitiveProgressWrapper(parentIndicator);
+        List<Future<Boolean>> futures = new ArrayList<>(parallelism);
+        boolean complete = true;
+        try {
+            for (int from = 0; from < methods.size(); from += chunkSize) {
+                List<PsiMethod> chunk = methods.subList(from, Math.min(from + chunkSize, methods.size()));
+                futures.add(executor.submit(new DuplicateResultsComputable(engine, fragment, file, chunk, index,
+                        duplicates, enoughDuplicates), searchIndicator));
+            }
+            for (Future<Boolean> future : futures) {
+                complete &= Boolean.TRUE.equals(executor.await(future, enoughDuplicates));
+            }
+        } finally {
+            searchIndicator.cancel();
+            futures.forEach(future -> future.cancel(false));
+        }
+        return new InspectionResult(new ArrayList<>(duplicates), complete && !enoughDuplicates.getAsBoolean());
+    }
+
+    private static boolean isProjectScopeAvailable(Project project, PastedFragment fragment) {
+        // The index can't be queried while indexing, and short fragments may miss the fingerprints of their copies
+        return Registry.is(PROJECT_SCOPE_REGISTRY_KEY)
+                && !DumbService.isDumb(project)
+                && MethodFingerprintIndex.isSearchable(fragment);
+    }
+
+    private DuplicateDetectionEngine getEngine() {
+        if (engine != null) {
+            return engine;
+        }
+        if (WinnowingEngine.NAME.equals(Registry.stringValue(ENGINE_REGISTRY_KEY))) {
+            return WinnowingEngine.INSTANCE;
+        }
+        return TokenSimilarityEngine.getInstance(
+                SimilarityMeasure.fromName(Registry.stringValue(SIMILARITY_REGISTRY_KEY)));
     }
 
     public static class DuplicateResult {
@@ -64,56 +151,86 @@ public final class DuplicatesInspection {
 
     public static class InspectionResult {
         private final List<DuplicateResult> results;
+        private final boolean complete;
 
         public InspectionResult(List<DuplicateResult> results) {
+            this(results, true);
+        }
+
+        public InspectionResult(List<DuplicateResult> results, boolean complete) {
             this.results = results;
+            this.complete = complete;
         }
 
         public int getDuplicatesCount() {
             return this.results.size();
         }
+
+        public List<DuplicateResult> getResults() {
+            return this.results;
+        }
+
+        /**
+         * Returns false if the search stopped after finding the required number of duplicates,
+         * so that there may be more duplicates than counted.
+         */
+        public boolean isComplete() {
+            return complete;
+        }
+
+        /**
+         * Returns true if the result answers whether there are at least the required number of duplicates:
+         * either the search was complete, or the required number was found.
+         */
+        public boolean isConclusiveFor(int requiredDuplicates) {
+            return complete || getDuplicatesCount() >= requiredDuplicates;
+        }
     }
 
-    private static class DuplicateResultComputable implements Computable<DuplicateResult> {
-        private final String code;
-        private final PsiMethod psiMethod;
-        private final List<String> tokensOfPastedCode;
+    /**
+     * Checks a chunk of methods of a file under a single read action, skipping the rest of the chunk
+     * once the required number of duplicates is found by any of the chunks.
+     * Returns true if all methods of the chunk were checked.
+     */
+    private static class DuplicateResultsComputable implements Computable<Boolean> {
+        private final DuplicateDetectionEngine engine;
+        private final PastedFragment fragment;
+        private final PsiFile file;
+        private final List<PsiMethod> methods;
+        private final MethodTokenIndex index;
+        private final Queue<DuplicateResult> duplicates;
+        private final BooleanSupplier enoughDuplicates;
 
-        private DuplicateResultComputable(String code, PsiMethod psiMethod, List<String> tokensOfPastedCode) {
-            this.code = code;
-            this.psiMethod = psiMethod;
-            this.tokensOfPastedCode = tokensOfPastedCode;
+        private DuplicateResultsComputable(DuplicateDetectionEngine engine, PastedFragment fragment, PsiFile file,
+                                           List<PsiMethod> methods, MethodTokenIndex index,
+                                           Queue<DuplicateResult> duplicates, BooleanSupplier enoughDuplicates) {
+            this.engine = engine;
+            this.fragment = fragment;
+            this.file = file;
+            this.methods = methods;
+            this.index = index;
+            this.duplicates = duplicates;
+            this.enoughDuplicates = enoughDuplicates;
         }
 
         @Override
-        public DuplicateResult compute() {
-            DuplicateResult duplicateResult = null;
-            PsiCodeBlock methodBody = psiMethod.getBody();
-            if (methodBody != null) {
-                String rawCode =
-                        code.replace('\n', ' ').replace('\t', ' ')
-                                .replace('\r', ' ').replaceAll("\\s+", "");
-                String rawMethodBody = psiMethod.getText().replace('\n', ' ').replace('\t', ' ')
-                        .replace('\r', ' ').replaceAll("\\s+", "");
-                boolean matches = StringUtils.contains(rawMethodBody, rawCode);
-                if (matches) {
-                    duplicateResult = new DuplicateResult(psiMethod, 1.0);
-                } else {
-                    List<String> tokensOfMethod = getTokens(methodBody.getText());
-                    double maxNumOfTokens = Math.max(tokensOfPastedCode.size(), tokensOfMethod.size());
-                    // Calculates the intersection of tokens
-                    tokensOfMethod.retainAll(tokensOfPastedCode);
-                    double threshold = tokensOfMethod.size() / maxNumOfTokens;
-                    if (threshold >= 0.8) {
-                        duplicateResult = new DuplicateResult(psiMethod, threshold);
+        public Boolean compute() {
+            return ReadAction.compute(() -> {
+                for (PsiMethod method : methods) {
+                    if (enoughDuplicates.getAsBoolean()) {
+                        return false;
+                    }
+                    ProgressManager.checkCanceled();
+                    if (!method.isValid()) {
+                        continue;
+                    }
+                    DuplicateResult result = engine.findDuplicate(fragment, index.getEntry(file, method));
+                    if (result != null) {
+                        duplicates.add(result);
                     }
                 }
-            }
-            return duplicateResult;
+                return true;
+            });
         }
     }
-
-    private static List<String> getTokens(String text) {
-        return StringUtil.getWordsIn(text);
-    }
 }
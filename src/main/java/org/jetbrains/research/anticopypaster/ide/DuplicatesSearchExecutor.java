@@ -0,0 +1,142 @@
+package org.jetbrains.research.anticopypaster.ide;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Computable;
+import com.intellij.util.concurrency.AppExecutorUtil;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.*;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Runs the tasks of the duplicates search of a project on the shared application pool.
+ * At most one task per core runs at a time, so idle projects don't hold any threads,
+ * and the number of submitted but unfinished tasks is capped, so bursts of pastes can't queue unbounded work.
+ * The executor is shut down together with the project.
+ */
+public final class DuplicatesSearchExecutor implements Disposable {
+    private static final Logger LOG = Logger.getInstance(DuplicatesSearchExecutor.class);
+
+    private static final int PARALLELISM = Math.max(1, Runtime.getRuntime().availableProcessors());
+    static final int MAX_IN_FLIGHT_TASKS = PARALLELISM * 4;
+    private static final long POLLING_INTERVAL_MS = 10;
+
+    private final ExecutorService executor =
+            AppExecutorUtil.createBoundedApplicationPoolExecutor("AntiCopyPaster Duplicates Search", PARALLELISM);
+    private final Semaphore inFlightTasks = new Semaphore(MAX_IN_FLIGHT_TASKS);
+    private volatile boolean disposed = false;
+
+    public static DuplicatesSearchExecutor getInstance(Project project) {
+        return project.getService(DuplicatesSearchExecutor.class);
+    }
+
+    /**
+     * Returns the number of tasks that can run at the same time.
+     */
+    public static int getParallelism() {
+        return PARALLELISM;
+    }
+
+    /**
+     * Submits the task, waiting while the cap of unfinished tasks is reached.
+     * The task runs under the progress indicator of the calling thread, if any,
+     * so it stops when the caller is cancelled.
+     *
+     * @throws ProcessCanceledException if the caller is cancelled or the project is closed while waiting.
+     */
+    public <T> Future<T> submit(Computable<T> task) {
+        return submit(task, ProgressManager.getGlobalProgressIndicator());
+    }
+
+    /**
+     * Submits the task to run under the given progress indicator, waiting while the cap of unfinished tasks
+     * is reached.
+     *
+     * @throws ProcessCanceledException if the caller is cancelled or the project is closed while waiting.
+     */
+    public <T> Future<T> submit(Computable<T> task, @Nullable ProgressIndicator indicator) {
+        acquire();
+        try {
+            return executor.submit(() -> {
+                try {
+                    return indicator == null ? task.compute() : ProgressManager.getInstance().runProcess(task, indicator);
+                } finally {
+                    inFlightTasks.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inFlightTasks.release();
+            throw new ProcessCanceledException(e);
+        }
+    }
+
+    /**
+     * Waits for the result of the task, checking for the cancellation of the calling thread meanwhile.
+     *
+     * @return the result of the task, or null if the task failed.
+     * @throws ProcessCanceledException if the caller or the task is cancelled.
+     */
+    @Nullable
+    public <T> T await(Future<T> future) {
+        return await(future, () -> false);
+    }
+
+    /**
+     * Waits for the result of the task, checking for the cancellation of the calling thread
+     * and for the stop condition meanwhile.
+     *
+     * @return the result of the task, or null if the task failed or the stop condition became true before
+     * the task finished.
+     * @throws ProcessCanceledException if the caller or the task is cancelled.
+     */
+    @Nullable
+    public <T> T await(Future<T> future, BooleanSupplier stopCondition) {
+        while (true) {
+            ProgressManager.checkCanceled();
+            if (!future.isDone() && stopCondition.getAsBoolean()) {
+                return null;
+            }
+            try {
+                return future.get(POLLING_INTERVAL_MS, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException ignored) {
+                // check for cancellation and wait again
+            } catch (CancellationException e) {
+                throw new ProcessCanceledException(e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ProcessCanceledException(e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof ProcessCanceledException) {
+                    throw (ProcessCanceledException) e.getCause();
+                }
+                LOG.warn("[ACP] Failed while searching for code duplicates.", e.getCause());
+                return null;
+            }
+        }
+    }
+
+    private void acquire() {
+        try {
+            while (!inFlightTasks.tryAcquire(POLLING_INTERVAL_MS, TimeUnit.MILLISECONDS)) {
+                ProgressManager.checkCanceled();
+                if (disposed) {
+                    throw new ProcessCanceledException();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ProcessCanceledException(e);
+        }
+    }
+
+    @Override
+    public void dispose() {
+        disposed = true;
+        executor.shutdownNow();
+    }
+}
@@ -13,9 +13,8 @@ import com.intellij.psi.PsiFile;
 import com.intellij.refactoring.RefactoringActionHandler;
 
 import java.util.List;
-import java.util.TimerTask;
 
-public class ExtractionTask extends TimerTask {
+public class ExtractionTask implements Runnable {
     public Editor editor;
     public Project project;
     public PsiFile file;
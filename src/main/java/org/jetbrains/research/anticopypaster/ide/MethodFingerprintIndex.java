@@ -0,0 +1,227 @@
+package org.jetbrains.research.anticopypaster.ide;
+
+import com.intellij.ide.highlighter.JavaFileType;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.PsiManager;
+import com.intellij.psi.PsiMethod;
+import com.intellij.psi.search.GlobalSearchScope;
+import com.intellij.psi.util.PsiTreeUtil;
+import com.intellij.util.indexing.*;
+import com.intellij.util.io.DataExternalizer;
+import com.intellij.util.io.DataInputOutputUtil;
+import com.intellij.util.io.EnumeratorIntegerDescriptor;
+import com.intellij.util.io.KeyDescriptor;
+import it.unimi.dsi.fastutil.ints.Int2IntMap;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntIterator;
+import it.unimi.dsi.fastutil.ints.IntSet;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.research.anticopypaster.utils.Winnowing;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.*;
+
+import static org.jetbrains.research.anticopypaster.utils.PsiUtil.removeWhitespaces;
+
+/**
+ * Maps winnowing fingerprints of method texts to the start offsets of the methods in each Java file,
+ * so that duplicates of a pasted piece of code can be searched in the whole project with index lookups
+ * instead of loading the PSI of every file.
+ */
+public class MethodFingerprintIndex extends FileBasedIndexExtension<Integer, int[]> implements PsiDependentIndex {
+    public static final ID<Integer, int[]> NAME = ID.create("org.jetbrains.research.anticopypaster.methodFingerprints");
+
+    /**
+     * Fingerprints found in more methods than this are as common as a stop word,
+     * and are ignored to keep the search time independent of the project size.
+     */
+    private static final int MAX_METHODS_PER_FINGERPRINT = 500;
+    /**
+     * Minimal share of the fingerprints of the piece of code that should be found in a method.
+     */
+    private static final double CONTAINMENT_THRESHOLD = 0.8;
+    /**
+     * Must be bumped whenever the indexed data changes, e.g. the parameters of {@link Winnowing},
+     * the hash function or the choice of the indexed methods.
+     */
+    private static final int VERSION = 1;
+
+    @Override
+    public @NotNull ID<Integer, int[]> getName() {
+        return NAME;
+    }
+
+    @Override
+    public @NotNull DataIndexer<Integer, int[], FileContent> getIndexer() {
+        return inputData -> {
+            Map<Integer, IntArrayList> offsets = new HashMap<>();
+            for (PsiMethod method : PsiTreeUtil.findChildrenOfType(inputData.getPsiFile(), PsiMethod.class)) {
+                if (method.getBody() == null) {
+                    continue;
+                }
+                int offset = method.getTextRange().getStartOffset();
+                IntIterator fingerprints = Winnowing.fingerprints(removeWhitespaces(method.getText())).iterator();
+                while (fingerprints.hasNext()) {
+                    offsets.computeIfAbsent(fingerprints.nextInt(), fingerprint -> new IntArrayList()).add(offset);
+                }
+            }
+            Map<Integer, int[]> result = new HashMap<>(offsets.size());
+            offsets.forEach((fingerprint, methodOffsets) -> result.put(fingerprint, methodOffsets.toIntArray()));
+            return result;
+        };
+    }
+
+    @Override
+    public @NotNull KeyDescriptor<Integer> getKeyDescriptor() {
+        return EnumeratorIntegerDescriptor.INSTANCE;
+    }
+
+    @Override
+    public @NotNull DataExternalizer<int[]> getValueExternalizer() {
+        return new DataExternalizer<>() {
+            @Override
+            public void save(@NotNull DataOutput out, int[] value) throws IOException {
+                DataInputOutputUtil.writeINT(out, value.length);
+                int previous = 0;
+                for (int offset : value) {
+                    // Offsets are ascending, so the deltas are small
+                    DataInputOutputUtil.writeINT(out, offset - previous);
+                    previous = offset;
+                }
+            }
+
+            @Override
+            public int[] read(@NotNull DataInput in) throws IOException {
+                int[] value = new int[DataInputOutputUtil.readINT(in)];
+                int previous = 0;
+                for (int i = 0; i < value.length; i++) {
+                    previous += DataInputOutputUtil.readINT(in);
+                    value[i] = previous;
+                }
+                return value;
+            }
+        };
+    }
+
+    @Override
+    public int getVersion() {
+        return VERSION;
+    }
+
+    @Override
+    public FileBasedIndex.@NotNull InputFilter getInputFilter() {
+        return new DefaultFileTypeSpecificInputFilter(JavaFileType.INSTANCE);
+    }
+
+    @Override
+    public boolean dependsOnFileContent() {
+        return true;
+    }
+
+    /**
+     * Searches for the methods of the project that contain the piece of code, using the fingerprints
+     * stored in the index. Must be called inside a read action in smart mode.
+     *
+     * @param project            to search duplicates in.
+     * @param fragment           the piece of code to search for, must be {@link #isSearchable searchable}.
+     * @param requiredDuplicates the number of duplicates after which the search stops.
+     * @return the found duplicates, which are incomplete if the search stopped early, or null if every fingerprint
+     * of the piece of code is too common to search for.
+     */
+    @Nullable
+    public static DuplicatesInspection.InspectionResult findDuplicates(Project project, PastedFragment fragment,
+                                                                       int requiredDuplicates) {
+        GlobalSearchScope scope = GlobalSearchScope.projectScope(project);
+        FileBasedIndex index = FileBasedIndex.getInstance();
+        IntSet fingerprintsOfPastedCode = fragment.getFingerprints();
+        // Skipping the common fingerprints only increases the containment, so this number of matches is always enough
+        int surelyContainedMatches = (int) Math.ceil(CONTAINMENT_THRESHOLD * fingerprintsOfPastedCode.size());
+        Map<VirtualFile, Int2IntOpenHashMap> matchesPerMethod = new HashMap<>();
+        Map<VirtualFile, IntArrayList> containingMethods = new HashMap<>();
+        int containingMethodsCount = 0;
+        List<VirtualFile> postingFiles = new ArrayList<>();
+        List<int[]> postingOffsets = new ArrayList<>();
+        int fingerprintsCount = 0;
+
+        IntIterator fingerprints = fingerprintsOfPastedCode.iterator();
+        while (fingerprints.hasNext() && containingMethodsCount < requiredDuplicates) {
+            ProgressManager.checkCanceled();
+            postingFiles.clear();
+            postingOffsets.clear();
+            int[] methodsCount = new int[1];
+            boolean rare = index.processValues(NAME, fingerprints.nextInt(), null, (file, offsets) -> {
+                postingFiles.add(file);
+                postingOffsets.add(offsets);
+                methodsCount[0] += offsets.length;
+                return methodsCount[0] <= MAX_METHODS_PER_FINGERPRINT;
+            }, scope);
+            if (!rare) {
+                continue;
+            }
+            fingerprintsCount++;
+            for (int i = 0; i < postingFiles.size(); i++) {
+                VirtualFile file = postingFiles.get(i);
+                Int2IntOpenHashMap matches = matchesPerMethod.computeIfAbsent(file, f -> new Int2IntOpenHashMap());
+                for (int offset : postingOffsets.get(i)) {
+                    if (matches.addTo(offset, 1) + 1 == surelyContainedMatches) {
+                        containingMethods.computeIfAbsent(file, f -> new IntArrayList()).add(offset);
+                        containingMethodsCount++;
+                    }
+                }
+            }
+        }
+
+        boolean complete = containingMethodsCount < requiredDuplicates;
+        if (fingerprintsCount == 0) {
+            // Nothing was searched for, so the absence of matches doesn't mean that there are no duplicates
+            return null;
+        }
+        if (complete) {
+            // All fingerprints are processed, so the matches can be compared with the number of the rare ones
+            containingMethods.clear();
+            for (Map.Entry<VirtualFile, Int2IntOpenHashMap> fileMatches : matchesPerMethod.entrySet()) {
+                for (Int2IntMap.Entry methodMatches : fileMatches.getValue().int2IntEntrySet()) {
+                    if ((double) methodMatches.getIntValue() / fingerprintsCount >= CONTAINMENT_THRESHOLD) {
+                        containingMethods.computeIfAbsent(fileMatches.getKey(), f -> new IntArrayList())
+                                .add(methodMatches.getIntKey());
+                    }
+                }
+            }
+        }
+
+        List<DuplicatesInspection.DuplicateResult> results = new ArrayList<>();
+        PsiManager psiManager = PsiManager.getInstance(project);
+        for (Map.Entry<VirtualFile, IntArrayList> fileMethods : containingMethods.entrySet()) {
+            PsiFile psiFile = psiManager.findFile(fileMethods.getKey());
+            if (psiFile == null) {
+                continue;
+            }
+            Int2IntOpenHashMap matches = matchesPerMethod.get(fileMethods.getKey());
+            IntIterator offsets = fileMethods.getValue().iterator();
+            while (offsets.hasNext()) {
+                int offset = offsets.nextInt();
+                PsiMethod method = PsiTreeUtil.getParentOfType(psiFile.findElementAt(offset), PsiMethod.class, false);
+                if (method != null) {
+                    double containment = (double) matches.get(offset) / fingerprintsCount;
+                    results.add(new DuplicatesInspection.DuplicateResult(method, Math.min(containment, 1.0)));
+                }
+            }
+        }
+        return new DuplicatesInspection.InspectionResult(results, complete);
+    }
+
+    /**
+     * Returns true if the piece of code is long enough to be searched for with {@link #findDuplicates}, that is
+     * if the methods containing it are guaranteed to have all of its fingerprints.
+     */
+    public static boolean isSearchable(PastedFragment fragment) {
+        return fragment.getRawCode().length() >= Winnowing.GUARANTEED_LENGTH;
+    }
+}
@@ -0,0 +1,158 @@
+package org.jetbrains.research.anticopypaster.ide;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Key;
+import com.intellij.openapi.util.UserDataHolderEx;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.psi.PsiCodeBlock;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.PsiManager;
+import com.intellij.psi.PsiMethod;
+import com.intellij.psi.util.PsiTreeUtil;
+import it.unimi.dsi.fastutil.ints.IntSet;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.research.anticopypaster.utils.PsiMethodChangeListener;
+import org.jetbrains.research.anticopypaster.utils.TokenBag;
+import org.jetbrains.research.anticopypaster.utils.Winnowing;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.jetbrains.research.anticopypaster.utils.PsiUtil.removeWhitespaces;
+
+/**
+ * Keeps the whitespace-free text and the tokens of every method of the files that were searched for duplicates,
+ * so that a paste only has to tokenize the pasted fragment. Entries are dropped on PSI changes of the method
+ * they belong to and are rebuilt lazily on the next lookup.
+ * The entries of a file are kept in its user data, so they don't outlive the PSI of the file.
+ */
+public final class MethodTokenIndex implements Disposable {
+    private static final Key<FileEntry> FILE_ENTRY = Key.create("anticopypaster.methodTokens");
+
+    public MethodTokenIndex(Project project) {
+        PsiManager.getInstance(project).addPsiTreeChangeListener(new PsiMethodChangeListener() {
+            @Override
+            protected void methodChanged(@NotNull PsiMethod method) {
+                PsiFile file = method.getContainingFile();
+                FileEntry fileEntry = file == null ? null : file.getUserData(FILE_ENTRY);
+                if (fileEntry != null) {
+                    fileEntry.invalidate(method);
+                }
+            }
+
+            @Override
+            protected void fileChanged(@NotNull PsiFile file) {
+                file.putUserData(FILE_ENTRY, null);
+            }
+        }, this);
+    }
+
+    public static MethodTokenIndex getInstance(Project project) {
+        return project.getService(MethodTokenIndex.class);
+    }
+
+    /**
+     * Returns all methods declared in the file. Must be called inside a read action.
+     */
+    public List<PsiMethod> getMethods(PsiFile file) {
+        if (!file.isValid()) {
+            return List.of();
+        }
+        return getFileEntry(file).getMethods(file);
+    }
+
+    /**
+     * Returns the entry of a method returned by {@link #getMethods}, tokenizing the method only if it was changed
+     * since the previous lookup. Must be called inside a read action.
+     */
+    public MethodEntry getEntry(PsiFile file, PsiMethod method) {
+        return getFileEntry(file).entries.computeIfAbsent(method, MethodEntry::new);
+    }
+
+    private FileEntry getFileEntry(PsiFile file) {
+        FileEntry fileEntry = file.getUserData(FILE_ENTRY);
+        if (fileEntry == null) {
+            fileEntry = ((UserDataHolderEx) file).putUserDataIfAbsent(FILE_ENTRY, new FileEntry());
+        }
+        return fileEntry;
+    }
+
+    @Override
+    public void dispose() {
+        // The entries are dropped together with the PSI of the project, only the listener has to be removed
+    }
+
+    private static final class FileEntry {
+        private final Map<PsiMethod, MethodEntry> entries = new ConcurrentHashMap<>();
+        private volatile List<PsiMethod> methods;
+
+        private List<PsiMethod> getMethods(PsiFile file) {
+            List<PsiMethod> methods = this.methods;
+            if (methods == null) {
+                methods = this.methods = new ArrayList<>(PsiTreeUtil.findChildrenOfType(file, PsiMethod.class));
+                entries.keySet().retainAll(new HashSet<>(methods));
+            }
+            return methods;
+        }
+
+        private void invalidate(PsiMethod method) {
+            entries.remove(method);
+            // A changed body may declare or drop methods of local and anonymous classes
+            methods = null;
+        }
+    }
+
+    /**
+     * Precomputed data of a single method used by the duplicates search.
+     */
+    public static final class MethodEntry {
+        private final PsiMethod method;
+        private final String rawText;
+        private final TokenBag bodyTokens;
+        private volatile IntSet fingerprints;
+
+        private MethodEntry(PsiMethod method) {
+            this.method = method;
+            this.rawText = removeWhitespaces(method.getText());
+            PsiCodeBlock body = method.getBody();
+            this.bodyTokens = body == null ? null : TokenBag.of(StringUtil.getWordsIn(body.getText()));
+        }
+
+        public PsiMethod getMethod() {
+            return method;
+        }
+
+        /**
+         * Returns the text of the whole method without any whitespaces.
+         */
+        public String getRawText() {
+            return rawText;
+        }
+
+        public boolean hasBody() {
+            return bodyTokens != null;
+        }
+
+        /**
+         * Returns the bag of words of the method body.
+         */
+        public TokenBag getBodyTokens() {
+            return bodyTokens;
+        }
+
+        /**
+         * Returns the winnowing fingerprints of the method text, calculated on the first request.
+         */
+        public IntSet getFingerprints() {
+            IntSet fingerprints = this.fingerprints;
+            if (fingerprints == null) {
+                fingerprints = this.fingerprints = Winnowing.fingerprints(rawText);
+            }
+            return fingerprints;
+        }
+    }
+}
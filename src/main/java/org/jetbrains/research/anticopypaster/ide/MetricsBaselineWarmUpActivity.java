@@ -0,0 +1,38 @@
+package org.jetbrains.research.anticopypaster.ide;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.Task;
+import com.intellij.openapi.project.DumbService;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.startup.StartupActivity;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.research.anticopypaster.AntiCopyPasterBundle;
+import org.jetbrains.research.anticopypaster.utils.MethodMetricsIndex;
+
+/**
+ * Gathers the metrics of the project methods in the background once the project is opened and indexed,
+ * so that the first pasted code fragment doesn't wait for the whole project to be scanned.
+ * Until the gathering is finished, the model uses the metrics gathered so far.
+ */
+public class MetricsBaselineWarmUpActivity implements StartupActivity.DumbAware {
+    @Override
+    public void runActivity(@NotNull Project project) {
+        if (ApplicationManager.getApplication().isUnitTestMode()) {
+            return;
+        }
+        DumbService.getInstance(project).runWhenSmart(() -> {
+            if (project.isDisposed()) {
+                return;
+            }
+            new Task.Backgroundable(project, AntiCopyPasterBundle.message("anticopypaster.metrics.baseline.progress"),
+                    true) {
+                @Override
+                public void run(@NotNull ProgressIndicator indicator) {
+                    indicator.setIndeterminate(false);
+                    MethodMetricsIndex.getInstance(project).warmUp(indicator);
+                }
+            }.queue();
+        });
+    }
+}
@@ -0,0 +1,71 @@
+package org.jetbrains.research.anticopypaster.ide;
+
+import com.intellij.openapi.util.Key;
+import com.intellij.openapi.util.text.StringUtil;
+import it.unimi.dsi.fastutil.ints.IntSet;
+import org.jetbrains.research.anticopypaster.utils.FragmentAnalysisCache;
+import org.jetbrains.research.anticopypaster.utils.TokenBag;
+import org.jetbrains.research.anticopypaster.utils.Winnowing;
+
+import static org.jetbrains.research.anticopypaster.utils.PsiUtil.removeWhitespaces;
+
+/**
+ * A pasted piece of code together with the data derived from it by the duplicate detection engines.
+ * The derived data is calculated lazily, once per fragment, and may be requested from several threads.
+ * Neither the tokens nor the fingerprints depend on the whitespaces, so the fragments that differ only in whitespaces
+ * share an instance kept in {@link FragmentAnalysisCache}.
+ */
+public final class PastedFragment {
+    private static final Key<PastedFragment> PASTED_FRAGMENT = Key.create("anticopypaster.pasted.fragment");
+
+    private final String code;
+    private final String rawCode;
+    private volatile TokenBag tokens;
+    private volatile IntSet fingerprints;
+
+    public PastedFragment(String code) {
+        this.code = code;
+        this.rawCode = removeWhitespaces(code);
+    }
+
+    /**
+     * Returns the cached fragment for the code, or a new one if the code wasn't analyzed recently.
+     */
+    public static PastedFragment of(String code) {
+        FragmentAnalysisCache.Entry entry = FragmentAnalysisCache.getInstance().get(code);
+        return entry.getOrCompute(PASTED_FRAGMENT, () -> new PastedFragment(entry.getNormalizedCode()));
+    }
+
+    public String getCode() {
+        return code;
+    }
+
+    /**
+     * Returns the code without any whitespaces.
+     */
+    public String getRawCode() {
+        return rawCode;
+    }
+
+    /**
+     * Returns the bag of words of the code.
+     */
+    public TokenBag getTokens() {
+        TokenBag tokens = this.tokens;
+        if (tokens == null) {
+            tokens = this.tokens = TokenBag.of(StringUtil.getWordsIn(code));
+        }
+        return tokens;
+    }
+
+    /**
+     * Returns the winnowing fingerprints of the code without whitespaces.
+     */
+    public IntSet getFingerprints() {
+        IntSet fingerprints = this.fingerprints;
+        if (fingerprints == null) {
+            fingerprints = this.fingerprints = Winnowing.fingerprints(rawCode);
+        }
+        return fingerprints;
+    }
+}
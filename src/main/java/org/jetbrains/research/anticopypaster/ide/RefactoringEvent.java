@@ -1,9 +1,12 @@
 package org.jetbrains.research.anticopypaster.ide;
 
 import com.intellij.openapi.editor.Editor;
+import com.intellij.openapi.editor.RangeMarker;
 import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.TextRange;
 import com.intellij.psi.PsiFile;
 import com.intellij.psi.PsiMethod;
+import org.jetbrains.annotations.Nullable;
 
 /**
  * Contains information about the code fragment that is recommended for extraction into a separate method.
@@ -18,6 +21,10 @@ public class RefactoringEvent {
     private final int linesOfCode;
     private boolean forceExtraction = false;
     private String reasonToExtract;
+    private long analysisStamp = -1;
+    private DuplicatesInspection.InspectionResult inspectionResult;
+    private volatile boolean cancelled = false;
+    private volatile RangeMarker pastedRange;
 
     public RefactoringEvent(PsiFile file, PsiMethod destinationMethod, String text, int matches,
                             Project project,
@@ -49,6 +56,57 @@ public class RefactoringEvent {
         return reasonToExtract;
     }
 
+    /**
+     * Remembers the duplicates found for the fragment, so that they can be reused while the file is not changed.
+     * The events are only created for correct fragments, so the fragment is known to be correct at that moment too.
+     *
+     * @param modificationStamp the stamp of the file's PSI at the moment of the analysis.
+     * @param inspectionResult  the duplicates found for the fragment.
+     */
+    public synchronized void setAnalysis(long modificationStamp, DuplicatesInspection.InspectionResult inspectionResult) {
+        this.analysisStamp = modificationStamp;
+        this.inspectionResult = inspectionResult;
+    }
+
+    /**
+     * Returns true if the fragment was analyzed when the file's PSI had the given modification stamp.
+     */
+    public synchronized boolean isAnalyzedAt(long modificationStamp) {
+        return inspectionResult != null && analysisStamp == modificationStamp;
+    }
+
+    @Nullable
+    public synchronized DuplicatesInspection.InspectionResult getInspectionResult() {
+        return inspectionResult;
+    }
+
+    /**
+     * Remembers where the fragment was pasted, the marker follows the later changes of the document.
+     */
+    public void setPastedRange(@Nullable RangeMarker pastedRange) {
+        this.pastedRange = pastedRange;
+    }
+
+    /**
+     * Returns the current range of the pasted fragment in the file, or null if it's unknown.
+     */
+    @Nullable
+    public TextRange getPastedRange() {
+        RangeMarker pastedRange = this.pastedRange;
+        return pastedRange != null && pastedRange.isValid() ? pastedRange.getTextRange() : null;
+    }
+
+    /**
+     * Marks the event as superseded by a newer paste of the same fragment, so that it is no longer processed.
+     */
+    public void cancel() {
+        this.cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
     public PsiFile getFile() {
         return file;
     }
@@ -3,18 +3,23 @@ package org.jetbrains.research.anticopypaster.ide;
 import com.intellij.CommonBundle;
 import com.intellij.notification.*;
 import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.ReadAction;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.editor.Editor;
+import com.intellij.openapi.progress.ProcessCanceledException;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.project.ProjectManager;
 import com.intellij.openapi.ui.Messages;
+import com.intellij.openapi.util.registry.Registry;
 import com.intellij.psi.PsiElement;
 import com.intellij.psi.PsiFile;
 import com.intellij.psi.PsiMethod;
 import com.intellij.refactoring.extractMethod.ExtractMethodProcessor;
 import com.intellij.refactoring.extractMethod.PrepareFailedException;
+import com.intellij.util.concurrency.AppExecutorUtil;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.jetbrains.research.anticopypaster.AntiCopyPasterBundle;
 import org.jetbrains.research.anticopypaster.checkers.FragmentCorrectnessChecker;
 import org.jetbrains.research.anticopypaster.models.PredictionModel;
@@ -29,30 +34,76 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.*;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 import static com.intellij.refactoring.extractMethod.ExtractMethodHandler.getProcessor;
 import static org.jetbrains.research.anticopypaster.utils.PsiUtil.*;
 
 /**
  * Shows a notification about discovered Extract Method refactoring opportunity.
+ * The added events are processed in the background once no new events were added for the debounce delay
+ * set by the {@code anticopypaster.notification.debounceMs} registry key, so nothing runs while nothing is pasted.
+ * Events of different files are processed concurrently by a small pool of workers.
  */
-public class RefactoringNotificationTask extends TimerTask {
+public class RefactoringNotificationTask implements Runnable {
     private static final Logger LOG = Logger.getInstance(RefactoringNotificationTask.class);
     private static final float predictionThreshold = 0.5f; // certainty threshold for models
+    static final int MIN_DUPLICATES_COUNT = 2; // the pasted fragment and at least one more copy
     private final DuplicatesInspection inspection;
-    private final ConcurrentLinkedQueue<RefactoringEvent> eventsQueue = new ConcurrentLinkedQueue<>();
+    private static final int MAX_QUEUED_EVENTS = 64;
+    private static final String DEBOUNCE_REGISTRY_KEY = "anticopypaster.notification.debounceMs";
+    private static final int DEFAULT_DEBOUNCE_MS = 500;
+    // Gives the notification's dialog time to close before the extraction starts
+    private static final long EXTRACTION_DELAY_MS = 100;
+    private static final int MAX_WORKERS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    // Pending events in the order of their last paste, a paste of the same fragment into the same file replaces
+    // the previous event. Guarded by itself together with the events in progress and the number of workers.
+    private final Map<EventKey, QueuedEvent> eventsQueue = new LinkedHashMap<>();
+    private final Map<EventKey, QueuedEvent> eventsInProgress = new HashMap<>();
+    private final Set<PsiFile> filesInProgress = new HashSet<>();
+    private int runningWorkers = 0;
+    private final AtomicLong processedEventsCount = new AtomicLong();
+    private final AtomicLong totalLatencyNanos = new AtomicLong();
     private final NotificationGroup notificationGroup = NotificationGroupManager.getInstance()
             .getNotificationGroup("Extract Method suggestion");
-    private final Timer timer;
+    private final Scheduler scheduler;
+    private final Executor processingExecutor;
+    private final Object schedulingLock = new Object();
+    private Future<?> scheduledProcessing;
     private PredictionModel model;
+    private MetricsGatherer metricsGatherer;
     private final boolean debugMetrics = true;
     private String logFilePath;
+    private final Consumer<RefactoringEvent> eventProcessor;
 
 
-    public RefactoringNotificationTask(DuplicatesInspection inspection, Timer timer) {
+    public RefactoringNotificationTask(DuplicatesInspection inspection) {
+        this(inspection, null);
+    }
+
+    /**
+     * Creates a task that passes the events to the given processor instead of processing them itself.
+     */
+    RefactoringNotificationTask(DuplicatesInspection inspection, @Nullable Consumer<RefactoringEvent> eventProcessor) {
+        // The scheduler thread is shared by the whole IDE, so the processing itself runs on the pool
+        this(inspection, eventProcessor, Scheduler.APPLICATION, AppExecutorUtil.createBoundedApplicationPoolExecutor(
+                "AntiCopyPaster Refactoring Notifications", MAX_WORKERS));
+    }
+
+    /**
+     * Creates a task that schedules the processing of the events with the given scheduler,
+     * and runs the workers on the given executor.
+     */
+    RefactoringNotificationTask(DuplicatesInspection inspection, @Nullable Consumer<RefactoringEvent> eventProcessor,
+                                Scheduler scheduler, Executor processingExecutor) {
         this.inspection = inspection;
-        this.timer = timer;
+        this.eventProcessor = eventProcessor != null ? eventProcessor : this::processEvent;
+        this.scheduler = scheduler;
+        this.processingExecutor = processingExecutor;
         if(debugMetrics && this.logFilePath == null){
             var filepathHolder = new Object(){String filepath = "";};
             // Using ProjectManager outside runReadAction causes issues,
@@ -67,10 +118,28 @@ public class RefactoringNotificationTask extends TimerTask {
         }
     }
 
-    private PredictionModel getOrInitModel() {
+    /**
+     * Returns the model, creating it on the first call, and updating its thresholds if enough methods
+     * of the project were changed since the metrics were gathered.
+     * While the metrics are gathered in the background after the project opening, the model uses
+     * the metrics gathered so far.
+     */
+    private synchronized PredictionModel getOrInitModel(Project project) {
         PredictionModel model = this.model;
+        if (model != null && metricsGatherer.isOutdated()) {
+            // Only the changed files are recalculated, so this is cheap compared to the initial gathering
+            MetricsGatherer gatherer = new MetricsGatherer(project, true);
+            synchronized (model) {
+                ((UserSettingsModel) model).initMetricsGathererAndMetricsFlags(gatherer);
+            }
+            // Only kept to tell when the thresholds are outdated
+            gatherer.releaseMetrics();
+            metricsGatherer = gatherer;
+        }
         if (model == null) {
-            model = this.model = new UserSettingsModel(new MetricsGatherer());
+            metricsGatherer = new MetricsGatherer(project, true);
+            model = this.model = new UserSettingsModel(metricsGatherer);
+            metricsGatherer.releaseMetrics();
             if(debugMetrics){
                 UserSettingsModel settingsModel = (UserSettingsModel) model;
                 try(FileWriter fr = new FileWriter(logFilePath, true)){
@@ -87,69 +156,109 @@ public class RefactoringNotificationTask extends TimerTask {
         return model;
     }
 
+    /**
+     * Processes the queued events until there are none left that can be taken by this worker.
+     * Several workers run at the same time, but each file is processed by a single worker at a time,
+     * so the events of a file are processed in the order of the pastes.
+     */
     @Override
     public void run() {
-        while (!eventsQueue.isEmpty()) {
-            final PredictionModel model = getOrInitModel();
+        QueuedEvent queuedEvent;
+        while ((queuedEvent = pollEvent()) != null) {
             try {
-                final RefactoringEvent event = eventsQueue.poll();
-                ApplicationManager.getApplication().runReadAction(() -> {
-                    DuplicatesInspection.InspectionResult result = inspection.resolve(event.getFile(), event.getText());
-                    // This only triggers if there are duplicates found in multiple methods,
-                    // multiple duplicates in one method doesn't count.
-                    if (result.getDuplicatesCount() < 2) {
-                        return;
-                    }
-                    HashSet<String> variablesInCodeFragment = new HashSet<>();
-                    HashMap<String, Integer> variablesCountsInCodeFragment = new HashMap<>();
-
-                    if (!FragmentCorrectnessChecker.isCorrect(event.getProject(), event.getFile(),
-                            event.getText(),
-                            variablesInCodeFragment,
-                            variablesCountsInCodeFragment)) {
-                        return;
-                    }
+                eventProcessor.accept(queuedEvent.event);
+            } catch (ProcessCanceledException e) {
+                // The other workers and the next processing take the remaining events
+                synchronized (eventsQueue) {
+                    runningWorkers--;
+                }
+                throw e;
+            } catch (Exception e) {
+                LOG.error("[ACP] Can't process an event", e);
+            } finally {
+                completeEvent(queuedEvent);
+            }
+        }
+    }
+
+    private void processEvent(RefactoringEvent event) {
+        final PredictionModel model = getOrInitModel(event.getProject());
+        // The analysis made on paste is reused unless the file was changed since then
+        long modificationStamp = ReadAction.compute(() -> event.getFile().getModificationStamp());
+        boolean analyzed = event.isAnalyzedAt(modificationStamp);
+        DuplicatesInspection.InspectionResult result = findDuplicates(event, modificationStamp);
+        // This only triggers if there are duplicates found in multiple methods,
+        // multiple duplicates in one method doesn't count.
+        if (result.getDuplicatesCount() < MIN_DUPLICATES_COUNT || event.isCancelled()) {
+            return;
+        }
+        ApplicationManager.getApplication().runReadAction(() -> {
+            HashSet<String> variablesInCodeFragment = new HashSet<>();
+            HashMap<String, Integer> variablesCountsInCodeFragment = new HashMap<>();
 
-                    FeaturesVector featuresVector = calculateFeatures(event);
+            // The analyzed fragments were checked before the event was created
+            boolean correct = analyzed
+                    || FragmentCorrectnessChecker.isCorrect(event.getProject(), event.getFile(),
+                    event.getText(),
+                    variablesInCodeFragment,
+                    variablesCountsInCodeFragment);
+            if (!correct) {
+                return;
+            }
 
-                    float prediction = model.predict(featuresVector);
-                    if(debugMetrics){
-                        UserSettingsModel settingsModel = (UserSettingsModel) model;
-                        try(FileWriter fr = new FileWriter(logFilePath, true)){
-                            String timestamp =
-                                    new SimpleDateFormat("yyyy.MM.dd HH:mm:ss").format(new Date());
+            FeaturesVector featuresVector = calculateFeatures(event);
 
-                            fr.write("\n-----------------------\nNEW COPY/PASTE EVENT: "
-                                    + timestamp + "\nPASTED CODE:\n"
-                                    + event.getText());
+            // The model keeps the metrics of the last prediction for logging, so predictions don't overlap
+            final float prediction;
+            synchronized (model) {
+                prediction = model.predict(featuresVector);
+                if(debugMetrics){
+                    UserSettingsModel settingsModel = (UserSettingsModel) model;
+                    try(FileWriter fr = new FileWriter(logFilePath, true)){
+                        String timestamp =
+                                new SimpleDateFormat("yyyy.MM.dd HH:mm:ss").format(new Date());
 
-                            if(prediction > predictionThreshold){
-                                fr.write("\n\nSent Notification: True");
-                            }else{
-                                fr.write("\n\nSent Notification: False");
-                            }
-                            fr.write("\nMETRICS\n");
-                        }catch(IOException ioe){
+                        fr.write("\n-----------------------\nNEW COPY/PASTE EVENT: "
+                                + timestamp + "\nPASTED CODE:\n"
+                                + event.getText());
 
+                        if(prediction > predictionThreshold){
+                            fr.write("\n\nSent Notification: True");
+                        }else{
+                            fr.write("\n\nSent Notification: False");
                         }
-                        settingsModel.logMetrics(logFilePath);
-                    }
-                    event.setReasonToExtract(AntiCopyPasterBundle.message(
-                            "extract.method.to.simplify.logic.of.enclosing.method")); // dummy
-
-                    if ((event.isForceExtraction() || prediction > predictionThreshold) &&
-                            canBeExtracted(event)) {
-                        notify(event.getProject(),
-                                AntiCopyPasterBundle.message(
-                                        "extract.method.refactoring.is.available"),
-                                getRunnableToShowSuggestionDialog(event)
-                        );
+                        fr.write("\nMETRICS\n");
+                    }catch(IOException ioe){
+
                     }
-                });
-            } catch (Exception e) {
-                LOG.error("[ACP] Can't process an event " + e.getMessage());
+                    settingsModel.logMetrics(logFilePath);
+                }
+            }
+            event.setReasonToExtract(AntiCopyPasterBundle.message(
+                    "extract.method.to.simplify.logic.of.enclosing.method")); // dummy
+
+            if ((event.isForceExtraction() || prediction > predictionThreshold) &&
+                    !event.isCancelled() && canBeExtracted(event)) {
+                notify(event.getProject(),
+                        AntiCopyPasterBundle.message(
+                                "extract.method.refactoring.is.available"),
+                        getRunnableToShowSuggestionDialog(event)
+                );
             }
+        });
+    }
+
+    /**
+     * Returns the duplicates found on paste if the file's PSI still has the given modification stamp and they
+     * tell whether there are enough duplicates, or searches for the duplicates again otherwise.
+     * The search acquires read actions for its chunks itself, so it must be called outside a read action.
+     */
+    DuplicatesInspection.InspectionResult findDuplicates(RefactoringEvent event, long modificationStamp) {
+        DuplicatesInspection.InspectionResult result = event.getInspectionResult();
+        if (event.isAnalyzedAt(modificationStamp) && result.isConclusiveFor(MIN_DUPLICATES_COUNT)) {
+            return result;
         }
+        return inspection.resolve(event.getFile(), event.getText(), MIN_DUPLICATES_COUNT);
     }
 
     public boolean canBeExtracted(RefactoringEvent event) {
@@ -215,14 +324,118 @@ public class RefactoringNotificationTask extends TimerTask {
     }
 
     private void scheduleExtraction(Project project, PsiFile file, Editor editor, String text) {
-        timer.schedule(
+        AppExecutorUtil.getAppScheduledExecutorService().schedule(
                 new ExtractionTask(editor, file, text, project),
-                100
+                EXTRACTION_DELAY_MS, TimeUnit.MILLISECONDS
         );
     }
 
+    /**
+     * Adds the event to the queue and postpones the processing of the queue until the debounce delay passes
+     * without new events.
+     * An earlier event with the same fragment pasted into the same file is cancelled, whether it is still queued
+     * or being processed. If the queue is full, the oldest event is dropped.
+     */
     public void addEvent(RefactoringEvent event) {
-        this.eventsQueue.add(event);
+        QueuedEvent queuedEvent = new QueuedEvent(event, scheduler.nanoTime());
+        synchronized (eventsQueue) {
+            QueuedEvent superseded = eventsQueue.remove(queuedEvent.key);
+            if (superseded != null) {
+                superseded.event.cancel();
+            }
+            QueuedEvent inProgress = eventsInProgress.get(queuedEvent.key);
+            if (inProgress != null) {
+                inProgress.event.cancel();
+            }
+            eventsQueue.put(queuedEvent.key, queuedEvent);
+            if (eventsQueue.size() > MAX_QUEUED_EVENTS) {
+                Iterator<QueuedEvent> oldest = eventsQueue.values().iterator();
+                oldest.next().event.cancel();
+                oldest.remove();
+            }
+        }
+        synchronized (schedulingLock) {
+            if (scheduledProcessing != null) {
+                scheduledProcessing.cancel(false);
+            }
+            scheduledProcessing = scheduler.schedule(this::startWorkers,
+                    Math.max(0, Registry.intValue(DEBOUNCE_REGISTRY_KEY, DEFAULT_DEBOUNCE_MS)));
+        }
+    }
+
+    /**
+     * Returns the number of events waiting to be processed.
+     */
+    int getQueueDepth() {
+        synchronized (eventsQueue) {
+            return eventsQueue.size();
+        }
+    }
+
+    /**
+     * Returns the number of events processed since the task was created.
+     */
+    long getProcessedEventsCount() {
+        return processedEventsCount.get();
+    }
+
+    /**
+     * Returns the average time in milliseconds between adding an event and the end of its processing.
+     */
+    double getAverageLatencyMs() {
+        long count = processedEventsCount.get();
+        return count == 0 ? 0 : totalLatencyNanos.get() / 1e6 / count;
+    }
+
+    /**
+     * Starts as many workers as there are queued events, up to the limit of the pool.
+     */
+    private void startWorkers() {
+        int workers;
+        synchronized (eventsQueue) {
+            workers = Math.min(MAX_WORKERS - runningWorkers, eventsQueue.size());
+            runningWorkers += workers;
+        }
+        for (int i = 0; i < workers; i++) {
+            processingExecutor.execute(this);
+        }
+    }
+
+    /**
+     * Removes the oldest event of a file that is not processed by another worker from the queue, and marks it
+     * as being processed, so that it can be cancelled by a newer paste.
+     *
+     * @return the event to process, or null if the calling worker should stop.
+     */
+    private QueuedEvent pollEvent() {
+        synchronized (eventsQueue) {
+            Iterator<QueuedEvent> iterator = eventsQueue.values().iterator();
+            while (iterator.hasNext()) {
+                QueuedEvent queuedEvent = iterator.next();
+                if (filesInProgress.add(queuedEvent.key.file)) {
+                    iterator.remove();
+                    eventsInProgress.put(queuedEvent.key, queuedEvent);
+                    return queuedEvent;
+                }
+            }
+            // The remaining events are taken by the workers that process their files
+            runningWorkers--;
+            return null;
+        }
+    }
+
+    private void completeEvent(QueuedEvent queuedEvent) {
+        synchronized (eventsQueue) {
+            eventsInProgress.remove(queuedEvent.key, queuedEvent);
+            filesInProgress.remove(queuedEvent.key.file);
+        }
+        long latency = scheduler.nanoTime() - queuedEvent.queuedAt;
+        totalLatencyNanos.addAndGet(latency);
+        long count = processedEventsCount.incrementAndGet();
+        if (LOG.isDebugEnabled()) {
+            LOG.debug(String.format("[ACP] Processed a pasted fragment in %d ms (%.1f ms on average), "
+                    + "%d processed, %d queued.", latency / 1_000_000, getAverageLatencyMs(), count, getQueueDepth()));
+        }
     }
 
     /**
@@ -236,9 +449,76 @@ public class RefactoringNotificationTask extends TimerTask {
         int eventEndLine = getNumberOfLine(file,
                 methodAfterPasting.getTextRange().getEndOffset());
         MetricCalculator metricCalculator =
-                new MetricCalculator(methodAfterPasting, event.getText(),
+                new MetricCalculator(methodAfterPasting, event.getText(), event.getPastedRange(),
                         eventBeginLine, eventEndLine);
 
         return metricCalculator.getFeaturesVector();
     }
-}
+
+    private static final class QueuedEvent {
+        private final RefactoringEvent event;
+        private final EventKey key;
+        private final long queuedAt;
+
+        private QueuedEvent(RefactoringEvent event, long queuedAt) {
+            this.event = event;
+            this.key = new EventKey(event);
+            this.queuedAt = queuedAt;
+        }
+    }
+
+    /**
+     * Delays the processing of the queue and tells the time the latency of the events is measured with.
+     * Tests replace it to advance the time explicitly.
+     */
+    interface Scheduler {
+        Scheduler APPLICATION = new Scheduler() {
+            @Override
+            public Future<?> schedule(Runnable task, long delayMs) {
+                return AppExecutorUtil.getAppScheduledExecutorService().schedule(task, delayMs, TimeUnit.MILLISECONDS);
+            }
+
+            @Override
+            public long nanoTime() {
+                return System.nanoTime();
+            }
+        };
+
+        Future<?> schedule(Runnable task, long delayMs);
+
+        long nanoTime();
+    }
+
+    /**
+     * Identifies the pasted fragment by the file and the fragment's text without whitespaces,
+     * so that pastes differing only in formatting are coalesced.
+     */
+    private static final class EventKey {
+        private final PsiFile file;
+        private final String normalizedText;
+        private final int hash;
+
+        private EventKey(RefactoringEvent event) {
+            this.file = event.getFile();
+            this.normalizedText = removeWhitespaces(event.getText());
+            this.hash = 31 * file.hashCode() + normalizedText.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof EventKey)) {
+                return false;
+            }
+            EventKey other = (EventKey) o;
+            return hash == other.hash && file.equals(other.file) && normalizedText.equals(other.normalizedText);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,52 @@
+package org.jetbrains.research.anticopypaster.ide;
+
+import org.apache.commons.lang.StringUtils;
+import org.jetbrains.research.anticopypaster.utils.SimilarityMeasure;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Checks if a method contains the copy-pasted piece of code as a substring,
+ * and if doesn't then compares the bags of words of the method body and the piece of code.
+ */
+public final class TokenSimilarityEngine implements DuplicateDetectionEngine {
+    public static final String NAME = "tokens";
+
+    private static final Map<SimilarityMeasure, TokenSimilarityEngine> INSTANCES =
+            new EnumMap<>(SimilarityMeasure.class);
+
+    static {
+        for (SimilarityMeasure measure : SimilarityMeasure.values()) {
+            INSTANCES.put(measure, new TokenSimilarityEngine(measure));
+        }
+    }
+
+    private final SimilarityMeasure measure;
+
+    private TokenSimilarityEngine(SimilarityMeasure measure) {
+        this.measure = measure;
+    }
+
+    public static TokenSimilarityEngine getInstance(SimilarityMeasure measure) {
+        return INSTANCES.get(measure);
+    }
+
+    @Override
+    public DuplicatesInspection.DuplicateResult findDuplicate(PastedFragment fragment,
+                                                              MethodTokenIndex.MethodEntry method) {
+        DuplicatesInspection.DuplicateResult duplicateResult = null;
+        if (method.hasBody()) {
+            boolean matches = StringUtils.contains(method.getRawText(), fragment.getRawCode());
+            if (matches) {
+                duplicateResult = new DuplicatesInspection.DuplicateResult(method.getMethod(), 1.0);
+            } else {
+                double threshold = measure.compute(fragment.getTokens(), method.getBodyTokens());
+                if (threshold >= 0.8) {
+                    duplicateResult = new DuplicatesInspection.DuplicateResult(method.getMethod(), threshold);
+                }
+            }
+        }
+        return duplicateResult;
+    }
+}
@@ -0,0 +1,42 @@
+package org.jetbrains.research.anticopypaster.ide;
+
+import it.unimi.dsi.fastutil.ints.IntSet;
+import org.apache.commons.lang.StringUtils;
+import org.jetbrains.research.anticopypaster.utils.Winnowing;
+
+/**
+ * Compares the winnowing fingerprints of the piece of code and a method, so that both exact containment
+ * and near-miss clones are found with hash lookups, whose number is linear in the size of the piece of code.
+ */
+public final class WinnowingEngine implements DuplicateDetectionEngine {
+    public static final String NAME = "winnowing";
+    public static final WinnowingEngine INSTANCE = new WinnowingEngine();
+
+    /**
+     * Minimal share of the fingerprints of the piece of code that should be found in a method.
+     */
+    private static final double CONTAINMENT_THRESHOLD = 0.8;
+
+    private WinnowingEngine() {
+    }
+
+    @Override
+    public DuplicatesInspection.DuplicateResult findDuplicate(PastedFragment fragment,
+                                                              MethodTokenIndex.MethodEntry method) {
+        if (!method.hasBody()) {
+            return null;
+        }
+        IntSet fingerprintsOfPastedCode = fragment.getFingerprints();
+        if (fingerprintsOfPastedCode.isEmpty()) {
+            // The piece of code is shorter than a single k-gram
+            return StringUtils.contains(method.getRawText(), fragment.getRawCode())
+                    ? new DuplicatesInspection.DuplicateResult(method.getMethod(), 1.0)
+                    : null;
+        }
+        double containment = Winnowing.containment(fingerprintsOfPastedCode, method.getFingerprints());
+        if (containment >= CONTAINMENT_THRESHOLD) {
+            return new DuplicatesInspection.DuplicateResult(method.getMethod(), containment);
+        }
+        return null;
+    }
+}
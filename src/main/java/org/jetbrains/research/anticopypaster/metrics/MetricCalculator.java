@@ -1,35 +1,56 @@
 package org.jetbrains.research.anticopypaster.metrics;
 
+import com.intellij.lang.ASTNode;
+import com.intellij.lang.java.lexer.JavaLexer;
+import com.intellij.lexer.Lexer;
+import com.intellij.openapi.util.Key;
+import com.intellij.openapi.util.TextRange;
+import com.intellij.pom.java.LanguageLevel;
+import com.intellij.psi.JavaTokenType;
+import com.intellij.psi.PsiElement;
 import com.intellij.psi.PsiFile;
-import com.intellij.psi.PsiFileFactory;
-import com.intellij.psi.PsiIdentifier;
 import com.intellij.psi.PsiMethod;
-import com.intellij.psi.util.PsiTreeUtil;
-import org.apache.commons.lang3.StringUtils;
+import com.intellij.psi.PsiRecursiveElementWalkingVisitor;
+import com.intellij.psi.tree.IElementType;
+import com.intellij.util.text.CharArrayUtil;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.jetbrains.research.anticopypaster.metrics.features.Feature;
-import org.jetbrains.research.anticopypaster.metrics.features.FeatureItem;
 import org.jetbrains.research.anticopypaster.metrics.features.FeaturesVector;
+import org.jetbrains.research.anticopypaster.metrics.utils.DepthAnalyzer;
+import org.jetbrains.research.anticopypaster.metrics.utils.KeywordsCounter;
 import org.jetbrains.research.anticopypaster.metrics.utils.MemberSets;
+import org.jetbrains.research.anticopypaster.utils.FragmentAnalysisCache;
 
 import java.io.FileWriter;
 import java.io.IOException;
-import java.util.*;
-
-import static org.jetbrains.research.anticopypaster.metrics.utils.DepthAnalyzer.getNestingArea;
+import java.util.HashSet;
+import java.util.Set;
 
 public class MetricCalculator {
+    private static final Key<FragmentTokens> FRAGMENT_TOKENS = Key.create("anticopypaster.fragment.tokens");
+
     private final String statementsStr;
     private final PsiMethod method;
+    private final TextRange fragmentRange;
 
     private final int beginLine;
     private final int endLine;
     private final FeaturesVector featuresVector;
 
     public MetricCalculator(PsiMethod dummyPsiMethod, String code, int beginLine, int endLine) {
+        this(dummyPsiMethod, code, null, beginLine, endLine);
+    }
+
+    /**
+     * @param fragmentRange the range of the code in the method's file, e.g. the range of the pasted text,
+     *                      or null if the code isn't a part of the method.
+     */
+    public MetricCalculator(PsiMethod dummyPsiMethod, String code, @Nullable TextRange fragmentRange,
+                            int beginLine, int endLine) {
         this.method = dummyPsiMethod;
         this.statementsStr = code;
+        this.fragmentRange = fragmentRange;
         this.beginLine = beginLine;
         this.endLine = endLine;
         this.featuresVector = new FeaturesVector(78); // TODO: Make dimension changeable outside
@@ -49,19 +70,54 @@ public class MetricCalculator {
     }
 
     private void computeFeatureVector() {
-        couplingFeatures();
-        keywordFeatures();
-        methodFeatures();
-        metaFeatures();
+        FeaturesCollector collector = collectFeatures();
+        couplingFeatures(collector.fragmentTokens.identifiers);
+        keywordFeatures(collector.fragmentTokens.keywordCounts);
+        methodFeatures(collector.methodNesting, collector.methodLength);
+        metaFeatures(collector.fragmentNesting);
     }
 
     public FeaturesVector getFeaturesVector() {
         return this.featuresVector;
     }
 
-    private void couplingFeatures() {
+    /**
+     * Walks the leaves of the method once, collecting the tokens and the nesting of both the method and the code
+     * fragment, which is usually a part of the method. Only if the fragment isn't found at its range in the method,
+     * e.g. because it was reformatted after pasting, it is scanned separately, and its tokens are taken from
+     * {@link FragmentAnalysisCache} if it was lexed recently.
+     */
+    private FeaturesCollector collectFeatures() {
+        int fragmentStart = getFragmentStartInMethod();
+        FeaturesCollector collector = new FeaturesCollector(fragmentStart, fragmentStart + statementsStr.length());
+        method.accept(collector);
+        if (fragmentStart < 0) {
+            collector.fragmentTokens = FragmentAnalysisCache.getInstance().get(statementsStr)
+                    .getOrCompute(FRAGMENT_TOKENS, () -> FragmentTokens.lex(statementsStr));
+            // The nesting depends on the exact line breaks, so it's not cached
+            collector.fragmentNesting.accept(statementsStr, 0, statementsStr.length());
+        }
+        return collector;
+    }
+
+    /**
+     * Returns the offset of the fragment in the method's text, or -1 if the code at the fragment's range isn't
+     * the fragment anymore.
+     */
+    private int getFragmentStartInMethod() {
+        TextRange methodRange = method.getTextRange();
+        if (fragmentRange == null || methodRange == null || !methodRange.contains(fragmentRange)
+                || fragmentRange.getLength() != statementsStr.length()) {
+            return -1;
+        }
+        // The range is a PSI offset, so it's matched against the PSI text, which may lag behind the document
+        int fragmentStart = fragmentRange.getStartOffset() - methodRange.getStartOffset();
+        return CharArrayUtil.regionMatches(method.getText(), fragmentStart, statementsStr) ? fragmentStart : -1;
+    }
+
+    private void couplingFeatures(Set<String> identifiersNames) {
         PsiFile thisFile = method.getContainingFile();
-        MemberSets memberSets = MemberSets.extractAllMethodsAndFields(thisFile);
+        MemberSets memberSets = MemberSets.getMethodsAndFields(thisFile);
 
         int linesCount = endLine - beginLine + 1;
 
@@ -69,14 +125,6 @@ public class MetricCalculator {
         int methodMatches = 0;
         int totalMatches;
 
-        PsiFileFactory factory = PsiFileFactory.getInstance(thisFile.getProject());
-        @Nullable PsiFile psiFromText = factory.createFileFromText(statementsStr, thisFile);
-        // search for all identifiers (methods and variables) in the code fragment
-        @NotNull Collection<PsiIdentifier> identifiers = PsiTreeUtil.collectElementsOfType(psiFromText,
-                PsiIdentifier.class);
-        HashSet<String> identifiersNames = new HashSet<>();
-        identifiers.forEach(i -> identifiersNames.add(i.getText()));
-
         for (String fieldName : memberSets.fields) {
             if (identifiersNames.contains(fieldName)) {
                 fieldMatches += 1;
@@ -91,70 +139,120 @@ public class MetricCalculator {
 
         totalMatches = methodMatches + fieldMatches;
 
-        featuresVector.setFeature(new FeatureItem(Feature.TotalConnectivity, totalMatches));
-        featuresVector.setFeature(new FeatureItem(
-                Feature.TotalConnectivityPerLine, (double) totalMatches / linesCount));
-        featuresVector.setFeature(new FeatureItem(Feature.FieldConnectivity, fieldMatches));
-        featuresVector.setFeature(new FeatureItem(
-                Feature.FieldConnectivityPerLine, (double) fieldMatches / linesCount));
-        featuresVector.setFeature(new FeatureItem(Feature.MethodConnectivity, methodMatches));
-        featuresVector.setFeature(new FeatureItem(
-                Feature.MethodConnectivityPerLine, (double) methodMatches / linesCount));
+        featuresVector.setFeature(Feature.TotalConnectivity, totalMatches);
+        featuresVector.setFeature(Feature.TotalConnectivityPerLine, (double) totalMatches / linesCount);
+        featuresVector.setFeature(Feature.FieldConnectivity, fieldMatches);
+        featuresVector.setFeature(Feature.FieldConnectivityPerLine, (double) fieldMatches / linesCount);
+        featuresVector.setFeature(Feature.MethodConnectivity, methodMatches);
+        featuresVector.setFeature(Feature.MethodConnectivityPerLine, (double) methodMatches / linesCount);
     }
 
-    private void keywordFeatures() {
-        List<String> allKeywords = Arrays.asList(
-                "continue", "for", "new", "switch",
-                "assert", "synchronized", "boolean", "do",
-                "if", "this", "break", "double",
-                "throw", "byte", "else", "case",
-                "instanceof", "return", "transient",
-                "catch", "int", "short", "try",
-                "char", "final", "finally", "long",
-                "strictfp", "float", "super", "while"); // 31 keywords, id from 20 to 81
-
-        HashMap<String, Integer> counts = new HashMap<>();
-        for (String key : allKeywords) {
-            counts.put(key, StringUtils.countMatches(this.statementsStr, key));
-        }
-
+    private void keywordFeatures(int[] counts) {
+        // 31 keywords in the order of KeywordsCounter.KEYWORDS
         int linesCount = endLine - beginLine + 1;
 
         int id = 16; // initialized with 16 to account for shift in Keyword-Features begin id.
-        for (String keyword : allKeywords) {
-            Integer count = counts.get(keyword);
-            featuresVector.setFeature(new FeatureItem(Feature.fromId(id++), count));
-            featuresVector.setFeature(new FeatureItem(Feature.fromId(id++), (double) count / linesCount));
+        for (int count : counts) {
+            featuresVector.setFeature(Feature.fromId(id++), count);
+            featuresVector.setFeature(Feature.fromId(id++), (double) count / linesCount);
         }
     }
 
-    private void methodFeatures() {
-        String methodStr = this.method.getText();
-        int methodArea = getNestingArea(methodStr);
-        int lineCount = StringUtils.countMatches(methodStr, '\n') + 1;
+    private void methodFeatures(DepthAnalyzer.Tracker nesting, int methodLength) {
+        int methodArea = nesting.getArea();
+        int lineCount = nesting.getLineCount();
 
-        featuresVector.setFeature(new FeatureItem(Feature.MethodDeclarationLines, lineCount));
-        featuresVector.setFeature(new FeatureItem(Feature.MethodDeclarationSymbols, methodStr.length()));
-        featuresVector.setFeature(new FeatureItem(
-                Feature.MethodDeclarationSymbolsPerLine, (double) methodStr.length() / lineCount));
-        featuresVector.setFeature(new FeatureItem(Feature.MethodDeclarationArea, methodArea));
-        featuresVector.setFeature(new FeatureItem(
-                Feature.MethodDeclarationAreaPerLine, (double) methodArea / lineCount));
+        featuresVector.setFeature(Feature.MethodDeclarationLines, lineCount);
+        featuresVector.setFeature(Feature.MethodDeclarationSymbols, methodLength);
+        featuresVector.setFeature(Feature.MethodDeclarationSymbolsPerLine, (double) methodLength / lineCount);
+        featuresVector.setFeature(Feature.MethodDeclarationArea, methodArea);
+        featuresVector.setFeature(Feature.MethodDeclarationAreaPerLine, (double) methodArea / lineCount);
 
     }
 
-    private void metaFeatures() {
-        String fragment = statementsStr;
-        int fragmentArea = getNestingArea(fragment);
-        int lineCount = StringUtils.countMatches(fragment, '\n') + 1;
+    private void metaFeatures(DepthAnalyzer.Tracker nesting) {
+        int fragmentLength = statementsStr.length();
+        int fragmentArea = nesting.getArea();
+        int lineCount = nesting.getLineCount();
+
+        featuresVector.setFeature(Feature.TotalLinesOfCode, lineCount);
+        featuresVector.setFeature(Feature.TotalSymbols, fragmentLength);
+        featuresVector.setFeature(Feature.SymbolsPerLine, (double) fragmentLength / lineCount);
+        featuresVector.setFeature(Feature.Area, fragmentArea);
+        featuresVector.setFeature(Feature.AreaPerLine, (double) fragmentArea / lineCount);
+
+    }
 
-        featuresVector.setFeature(new FeatureItem(Feature.TotalLinesOfCode, lineCount));
-        featuresVector.setFeature(new FeatureItem(Feature.TotalSymbols, fragment.length()));
-        featuresVector.setFeature(new FeatureItem(
-                Feature.SymbolsPerLine, (double) fragment.length() / lineCount));
-        featuresVector.setFeature(new FeatureItem(Feature.Area, fragmentArea));
-        featuresVector.setFeature(new FeatureItem(
-                Feature.AreaPerLine, (double) fragmentArea / lineCount));
+    /**
+     * Collects the identifiers and the keyword counts of a code fragment token by token.
+     * Neither depends on the whitespaces, so the tokens are shared by such fragments once collected.
+     */
+    private static final class FragmentTokens {
+        private final Set<String> identifiers = new HashSet<>();
+        private final int[] keywordCounts = new int[KeywordsCounter.KEYWORDS.size()];
 
+        private void acceptToken(IElementType tokenType, CharSequence code, int start, int end) {
+            if (tokenType == JavaTokenType.IDENTIFIER) {
+                identifiers.add(code.subSequence(start, end).toString());
+                return;
+            }
+            int keywordIndex = KeywordsCounter.indexOf(tokenType);
+            if (keywordIndex >= 0) {
+                keywordCounts[keywordIndex]++;
+            }
+        }
+
+        private static FragmentTokens lex(CharSequence code) {
+            FragmentTokens tokens = new FragmentTokens();
+            Lexer lexer = new JavaLexer(LanguageLevel.HIGHEST);
+            lexer.start(code);
+            for (IElementType tokenType = lexer.getTokenType(); tokenType != null; tokenType = lexer.getTokenType()) {
+                tokens.acceptToken(tokenType, code, lexer.getTokenStart(), lexer.getTokenEnd());
+                lexer.advance();
+            }
+            return tokens;
+        }
+    }
+
+    /**
+     * Visits the leaves of a method, feeding the part of them inside the fragment's range to {@link FragmentTokens}
+     * and to the fragment's nesting tracker.
+     */
+    private static final class FeaturesCollector extends PsiRecursiveElementWalkingVisitor {
+        private final int fragmentStart;
+        private final int fragmentEnd;
+        private FragmentTokens fragmentTokens = new FragmentTokens();
+        private final DepthAnalyzer.Tracker fragmentNesting = new DepthAnalyzer.Tracker();
+        private final DepthAnalyzer.Tracker methodNesting = new DepthAnalyzer.Tracker();
+        private int methodLength = 0;
+
+        private FeaturesCollector(int fragmentStart, int fragmentEnd) {
+            this.fragmentStart = fragmentStart;
+            this.fragmentEnd = fragmentEnd;
+        }
+
+        @Override
+        public void visitElement(@NotNull PsiElement element) {
+            if (element.getFirstChild() != null) {
+                super.visitElement(element);
+                return;
+            }
+            ASTNode node = element.getNode();
+            CharSequence text = node.getChars();
+            int start = methodLength;
+            int end = start + text.length();
+            methodLength = end;
+            methodNesting.accept(text, 0, text.length());
+
+            int from = Math.max(start, fragmentStart);
+            int to = Math.min(end, fragmentEnd);
+            if (from < to) {
+                fragmentNesting.accept(text, from - start, to - start);
+                // Tokens cut by the fragment's bounds are not counted
+                if (from == start && to == end) {
+                    fragmentTokens.acceptToken(node.getElementType(), text, 0, text.length());
+                }
+            }
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,149 @@
+package org.jetbrains.research.anticopypaster.metrics.features;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Stores the features of many methods as one primitive column per feature, instead of a {@link FeaturesVector}
+ * of boxed items per method, so that the metrics of a large project take a few arrays on the heap.
+ * Adding rows is thread-safe; reading should happen after all rows are added, or on a {@link #copy()}.
+ */
+public final class FeaturesColumns {
+    private static final int INITIAL_CAPACITY = 64;
+    /**
+     * Number of features calculated for a method.
+     */
+    public static final int DIMENSION = Feature.values().length;
+
+    private final int dimension;
+    private final float[][] columns;
+    private volatile int size = 0;
+
+    public FeaturesColumns(int dimension) {
+        this.dimension = dimension;
+        this.columns = new float[dimension][INITIAL_CAPACITY];
+    }
+
+    /**
+     * Returns the columns the vectors were taken from if the list is a {@link #asVectors()} view,
+     * otherwise copies the values of all features of the vectors into new columns. Null vectors are stored as zeros.
+     */
+    public static FeaturesColumns of(List<FeaturesVector> vectors) {
+        if (vectors instanceof VectorsView) {
+            return ((VectorsView) vectors).columns;
+        }
+        FeaturesColumns result = new FeaturesColumns(DIMENSION);
+        result.ensureCapacity(vectors.size());
+        for (FeaturesVector vector : vectors) {
+            result.add(vector == null ? new float[DIMENSION] : toRow(vector, DIMENSION));
+        }
+        return result;
+    }
+
+    public int getDimension() {
+        return dimension;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Adds a row of feature values ordered by {@link Feature#getId()}. Missing trailing values are stored as zeros.
+     */
+    public synchronized void add(float[] row) {
+        ensureCapacity(size + 1);
+        int length = Math.min(row.length, dimension);
+        for (int feature = 0; feature < length; feature++) {
+            columns[feature][size] = row[feature];
+        }
+        size++;
+    }
+
+    public void add(FeaturesVector vector) {
+        add(toRow(vector, dimension));
+    }
+
+    private static float[] toRow(FeaturesVector vector, int dimension) {
+        float[] row = new float[dimension];
+        for (int feature = 0; feature < dimension; feature++) {
+            row[feature] = (float) vector.getFeatureValue(Feature.fromId(feature));
+        }
+        return row;
+    }
+
+    public synchronized void addAll(List<float[]> rows) {
+        ensureCapacity(size + rows.size());
+        for (float[] row : rows) {
+            add(row);
+        }
+    }
+
+    /**
+     * Returns the value of the feature of the method in the given row.
+     */
+    public float get(int row, Feature feature) {
+        return get(row, feature.getId());
+    }
+
+    public float get(int row, int featureId) {
+        if (row >= size) {
+            throw new IndexOutOfBoundsException("Row " + row + " is out of bounds for size " + size);
+        }
+        return columns[featureId][row];
+    }
+
+    /**
+     * Returns a snapshot of the rows added so far.
+     */
+    public synchronized FeaturesColumns copy() {
+        FeaturesColumns result = new FeaturesColumns(dimension);
+        result.ensureCapacity(size);
+        for (int feature = 0; feature < dimension; feature++) {
+            System.arraycopy(columns[feature], 0, result.columns[feature], 0, size);
+        }
+        result.size = size;
+        return result;
+    }
+
+    /**
+     * Returns a read-only list view of the rows, creating a {@link FeaturesVector} for a row on each access.
+     */
+    public List<FeaturesVector> asVectors() {
+        return new VectorsView(this);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (dimension == 0 || capacity <= columns[0].length) {
+            return;
+        }
+        int newCapacity = Math.max(capacity, columns[0].length * 2);
+        for (int feature = 0; feature < dimension; feature++) {
+            columns[feature] = Arrays.copyOf(columns[feature], newCapacity);
+        }
+    }
+
+    private static final class VectorsView extends AbstractList<FeaturesVector> implements RandomAccess {
+        private final FeaturesColumns columns;
+
+        private VectorsView(FeaturesColumns columns) {
+            this.columns = columns;
+        }
+
+        @Override
+        public FeaturesVector get(int index) {
+            FeaturesVector vector = new FeaturesVector(columns.dimension);
+            for (int feature = 0; feature < columns.dimension; feature++) {
+                vector.setFeature(Feature.fromId(feature), columns.get(index, feature));
+            }
+            return vector;
+        }
+
+        @Override
+        public int size() {
+            return columns.size();
+        }
+    }
+}
@@ -1,10 +1,15 @@
 package org.jetbrains.research.anticopypaster.metrics.features;
 
-import java.util.ArrayList;
+import java.util.AbstractList;
 import java.util.List;
+import java.util.RandomAccess;
 
+/**
+ * Keeps the values of the features in a single primitive array indexed by {@link Feature#getId()},
+ * so that setting and reading a feature doesn't allocate anything.
+ */
 public class FeaturesVector {
-    private final List<FeatureItem> features = new ArrayList<>();
+    private final double[] values;
     private final int dimension;
 
     /**
@@ -12,13 +17,15 @@ public class FeaturesVector {
      */
     public FeaturesVector(int dimension) {
         this.dimension = dimension;
-        for (int i = 0; i < dimension; i++) {
-            features.add(new FeatureItem(Feature.fromId(i), 0));
-        }
+        this.values = new double[dimension];
     }
 
     public void setFeature(final FeatureItem item) {
-        features.set(item.getId(), item);
+        values[item.getId()] = item.getValue();
+    }
+
+    public void setFeature(Feature feature, double value) {
+        values[feature.getId()] = value;
     }
 
     public int getDimension() {
@@ -26,22 +33,42 @@ public class FeaturesVector {
     }
 
     public double getFeatureValue(Feature toSearch) {
-        return features.get(toSearch.getId()).getValue();
+        return values[toSearch.getId()];
     }
 
+    /**
+     * Returns a read-only view of the features, creating a {@link FeatureItem} for a feature on each access.
+     */
     public List<FeatureItem> getItems() {
-        return features;
+        return new ValuesView<>() {
+            @Override
+            public FeatureItem get(int index) {
+                return new FeatureItem(Feature.fromId(index), values[index]);
+            }
+
+            @Override
+            public int size() {
+                return dimension;
+            }
+        };
     }
 
     /**
      * Returns List of floats, corresponding to computed features.
+     * The list is a read-only view backed by this vector.
      */
     public List<Float> buildList() {
-        List<Float> result = new ArrayList<>();
-        for (int i = 0; i < dimension; ++i) {
-            result.add((float) features.get(i).getValue());
-        }
-        return result;
+        return new ValuesView<>() {
+            @Override
+            public Float get(int index) {
+                return (float) values[index];
+            }
+
+            @Override
+            public int size() {
+                return dimension;
+            }
+        };
     }
 
     /**
@@ -49,24 +76,31 @@ public class FeaturesVector {
      */
     public float[] buildArray() {
         float[] floatArray = new float[dimension];
-
         for (int i = 0; i < dimension; i++) {
-            float to_insert = (float) features.get(i).getValue();
-            floatArray[i] = to_insert;
+            floatArray[i] = (float) values[i];
         }
-
         return floatArray;
     }
 
     /**
      * Returns List of floats, corresponding to computed features,
      * indices of which are passed in `indexList`.
+     * The list is a read-only view backed by this vector.
      */
     public List<Float> buildCroppedVector(List<Integer> indexList) {
-        List<Float> result = new ArrayList<>();
-        for (int i : indexList) {
-            result.add((float) features.get(i).getValue());
-        }
-        return result;
+        return new ValuesView<>() {
+            @Override
+            public Float get(int index) {
+                return (float) values[indexList.get(index)];
+            }
+
+            @Override
+            public int size() {
+                return indexList.size();
+            }
+        };
+    }
+
+    private abstract static class ValuesView<T> extends AbstractList<T> implements RandomAccess {
     }
 }
@@ -1,53 +1,257 @@
 package org.jetbrains.research.anticopypaster.metrics.utils;
 
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+
 /**
- * Utility class for computing depth-metrics of passed code
+ * Utility class for computing depth-metrics of passed code.
+ * The code is scanned once without splitting it into lines, and the braces inside strings, character literals
+ * and comments are ignored.
  */
 public class DepthAnalyzer {
     /**
-     * Generates and returns array of integers, representing the nesting level of each line
+     * Generates and returns array of integers, representing the nesting level of each line.
+     * Trailing empty lines are not included.
      */
-    public static int[] getNestingDepths(String code) {
-        String[] lines = code.split("\n");
-        int[] depthInLine = new int[lines.length];
-        int currentDepth = 0; // current count
-
-        // Traverse the input strings
-        for (int i = 0; i < lines.length; i++) {
-            for (int j = 0; j < lines[i].length(); j++) {
-                if (lines[i].charAt(j) == '{')
-                    break;
-
-                if (lines[i].charAt(j) == '}') {
-                    currentDepth--;
-                }
+    public static int[] getNestingDepths(CharSequence code) {
+        if (code.length() == 0) {
+            return new int[]{0};
+        }
+        Tracker tracker = new Tracker();
+        IntArrayList depths = new IntArrayList();
+        int nonEmptyLines = 0;
+        for (int lineStart = 0; lineStart <= code.length(); ) {
+            int lineEnd = lineStart;
+            while (lineEnd < code.length() && code.charAt(lineEnd) != '\n') {
+                lineEnd++;
             }
-            currentDepth = Math.max(currentDepth, 0);
-            depthInLine[i] = currentDepth;
-            for (int j = 0; j < lines[i].length(); j++) {
-                if (lines[i].charAt(j) == '{') currentDepth++;
+            tracker.accept(code, lineStart, lineEnd);
+            depths.add(tracker.getLineDepth());
+            if (lineEnd > lineStart) {
+                nonEmptyLines = depths.size();
             }
+            if (lineEnd < code.length()) {
+                tracker.accept('\n');
+            }
+            lineStart = lineEnd + 1;
         }
-        return depthInLine;
+        depths.size(nonEmptyLines);
+        return depths.toIntArray();
     }
 
     /**
      * Computes nesting area (i.e. line-wise sum of nesting levels) of the given code
      */
-    public static int getNestingArea(String code) {
-        int area = 0;
-        for (int value : getNestingDepths(code))
-            area += value;
-        return area;
+    public static int getNestingArea(CharSequence code) {
+        Tracker tracker = new Tracker();
+        tracker.accept(code, 0, code.length());
+        return tracker.getArea();
     }
 
     /**
      * Computes nesting depth (i.e. line-wise maximum of nesting levels) of the given code
      */
-    public static int getNestingDepth(String code) {
-        int depth = 0;
-        for (int value : getNestingDepths(code))
-            depth = Math.max(value, depth);
-        return depth;
+    public static int getNestingDepth(CharSequence code) {
+        Tracker tracker = new Tracker();
+        tracker.accept(code, 0, code.length());
+        return tracker.getDepth();
+    }
+
+    /**
+     * Computes the nesting area and depth of code passed to it in parts, e.g. token by token,
+     * with the same result as {@link #getNestingArea} and {@link #getNestingDepth} for the whole code.
+     * The nesting level of a line is the level before its first opening brace, after the closing braces preceding it.
+     */
+    public static final class Tracker {
+        private int currentDepth = 0;
+        private int lineDepth = 0;
+        private boolean lineDepthKnown = false;
+        private boolean lineEmpty = true;
+        // Trailing empty lines are not counted, so the empty lines are only counted when a non-empty one follows
+        private int emptyLinesArea = 0;
+        private int emptyLinesDepth = 0;
+        private int area = 0;
+        private int depth = 0;
+        private int lineBreaks = 0;
+        private State state = State.CODE;
+        private int textBlockQuotes = 0;
+
+        public void accept(CharSequence code, int start, int end) {
+            for (int i = start; i < end; i++) {
+                accept(code.charAt(i));
+            }
+        }
+
+        public void accept(char c) {
+            if (c == '\n') {
+                finishLine();
+                lineBreaks++;
+            } else {
+                lineEmpty = false;
+            }
+            switch (state) {
+                case CODE:
+                    acceptCode(c);
+                    break;
+                case SLASH:
+                    if (c == '/') {
+                        state = State.LINE_COMMENT;
+                    } else if (c == '*') {
+                        state = State.BLOCK_COMMENT;
+                    } else {
+                        state = State.CODE;
+                        acceptCode(c);
+                    }
+                    break;
+                case LINE_COMMENT:
+                    if (c == '\n') {
+                        state = State.CODE;
+                    }
+                    break;
+                case BLOCK_COMMENT:
+                    if (c == '*') {
+                        state = State.BLOCK_COMMENT_STAR;
+                    }
+                    break;
+                case BLOCK_COMMENT_STAR:
+                    if (c == '/') {
+                        state = State.CODE;
+                    } else if (c != '*') {
+                        state = State.BLOCK_COMMENT;
+                    }
+                    break;
+                case OPENING_QUOTE:
+                    state = c == '"' ? State.EMPTY_STRING : acceptStringChar(c);
+                    break;
+                case EMPTY_STRING:
+                    if (c == '"') {
+                        state = State.TEXT_BLOCK;
+                        textBlockQuotes = 0;
+                    } else {
+                        state = State.CODE;
+                        acceptCode(c);
+                    }
+                    break;
+                case STRING:
+                    state = c == '"' ? State.CODE : acceptStringChar(c);
+                    break;
+                case STRING_ESCAPE:
+                    state = c == '\n' ? State.CODE : State.STRING;
+                    break;
+                case CHAR:
+                    if (c == '\'' || c == '\n') {
+                        state = State.CODE;
+                    } else if (c == '\\') {
+                        state = State.CHAR_ESCAPE;
+                    }
+                    break;
+                case CHAR_ESCAPE:
+                    state = c == '\n' ? State.CODE : State.CHAR;
+                    break;
+                case TEXT_BLOCK:
+                    if (c == '"') {
+                        if (++textBlockQuotes == 3) {
+                            state = State.CODE;
+                        }
+                    } else {
+                        textBlockQuotes = 0;
+                        if (c == '\\') {
+                            state = State.TEXT_BLOCK_ESCAPE;
+                        }
+                    }
+                    break;
+                case TEXT_BLOCK_ESCAPE:
+                    state = State.TEXT_BLOCK;
+                    break;
+            }
+        }
+
+        public int getArea() {
+            return lineEmpty ? area : area + emptyLinesArea + getLineDepth();
+        }
+
+        public int getDepth() {
+            return lineEmpty ? depth : Math.max(depth, Math.max(emptyLinesDepth, getLineDepth()));
+        }
+
+        /**
+         * Returns the number of line breaks plus one.
+         */
+        public int getLineCount() {
+            return lineBreaks + 1;
+        }
+
+        private void acceptCode(char c) {
+            switch (c) {
+                case '{':
+                    if (!lineDepthKnown) {
+                        fixLineDepth();
+                    }
+                    currentDepth++;
+                    break;
+                case '}':
+                    // Only the closing braces before the first opening one in the line affect the depth
+                    if (!lineDepthKnown) {
+                        currentDepth--;
+                    }
+                    break;
+                case '"':
+                    state = State.OPENING_QUOTE;
+                    break;
+                case '\'':
+                    state = State.CHAR;
+                    break;
+                case '/':
+                    state = State.SLASH;
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        /**
+         * Returns the state after a character of a string literal other than the closing quote.
+         */
+        private static State acceptStringChar(char c) {
+            if (c == '\n') {
+                // An unterminated string ends with the line
+                return State.CODE;
+            }
+            return c == '\\' ? State.STRING_ESCAPE : State.STRING;
+        }
+
+        /**
+         * Returns the nesting level of the current line, as far as it's known.
+         */
+        private int getLineDepth() {
+            return lineDepthKnown ? lineDepth : Math.max(currentDepth, 0);
+        }
+
+        private void fixLineDepth() {
+            currentDepth = Math.max(currentDepth, 0);
+            lineDepth = currentDepth;
+            lineDepthKnown = true;
+        }
+
+        private void finishLine() {
+            if (!lineDepthKnown) {
+                fixLineDepth();
+            }
+            if (lineEmpty) {
+                emptyLinesArea += lineDepth;
+                emptyLinesDepth = Math.max(emptyLinesDepth, lineDepth);
+            } else {
+                area += emptyLinesArea + lineDepth;
+                depth = Math.max(depth, Math.max(emptyLinesDepth, lineDepth));
+                emptyLinesArea = 0;
+                emptyLinesDepth = 0;
+            }
+            lineEmpty = true;
+            lineDepthKnown = false;
+        }
+
+        private enum State {
+            CODE, SLASH, LINE_COMMENT, BLOCK_COMMENT, BLOCK_COMMENT_STAR,
+            OPENING_QUOTE, EMPTY_STRING, STRING, STRING_ESCAPE, CHAR, CHAR_ESCAPE, TEXT_BLOCK, TEXT_BLOCK_ESCAPE
+        }
     }
 }
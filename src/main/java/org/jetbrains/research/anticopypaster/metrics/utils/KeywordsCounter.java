@@ -0,0 +1,46 @@
+package org.jetbrains.research.anticopypaster.metrics.utils;
+
+import com.intellij.psi.JavaTokenType;
+import com.intellij.psi.tree.IElementType;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Utility class for counting the keywords of code by their token types,
+ * so that only real keyword tokens are counted, and not the keywords inside identifiers, strings or comments.
+ */
+public class KeywordsCounter {
+    /**
+     * The counted keywords, in the order of the keyword features.
+     */
+    public static final List<IElementType> KEYWORDS = List.of(
+            JavaTokenType.CONTINUE_KEYWORD, JavaTokenType.FOR_KEYWORD, JavaTokenType.NEW_KEYWORD,
+            JavaTokenType.SWITCH_KEYWORD, JavaTokenType.ASSERT_KEYWORD, JavaTokenType.SYNCHRONIZED_KEYWORD,
+            JavaTokenType.BOOLEAN_KEYWORD, JavaTokenType.DO_KEYWORD, JavaTokenType.IF_KEYWORD,
+            JavaTokenType.THIS_KEYWORD, JavaTokenType.BREAK_KEYWORD, JavaTokenType.DOUBLE_KEYWORD,
+            JavaTokenType.THROW_KEYWORD, JavaTokenType.BYTE_KEYWORD, JavaTokenType.ELSE_KEYWORD,
+            JavaTokenType.CASE_KEYWORD, JavaTokenType.INSTANCEOF_KEYWORD, JavaTokenType.RETURN_KEYWORD,
+            JavaTokenType.TRANSIENT_KEYWORD, JavaTokenType.CATCH_KEYWORD, JavaTokenType.INT_KEYWORD,
+            JavaTokenType.SHORT_KEYWORD, JavaTokenType.TRY_KEYWORD, JavaTokenType.CHAR_KEYWORD,
+            JavaTokenType.FINAL_KEYWORD, JavaTokenType.FINALLY_KEYWORD, JavaTokenType.LONG_KEYWORD,
+            JavaTokenType.STRICTFP_KEYWORD, JavaTokenType.FLOAT_KEYWORD, JavaTokenType.SUPER_KEYWORD,
+            JavaTokenType.WHILE_KEYWORD);
+
+    private static final Map<IElementType, Integer> KEYWORD_INDICES = new HashMap<>();
+
+    static {
+        for (int i = 0; i < KEYWORDS.size(); i++) {
+            KEYWORD_INDICES.put(KEYWORDS.get(i), i);
+        }
+    }
+
+    /**
+     * Returns the index of the token type in {@link #KEYWORDS}, or -1 if it's not one of the counted keywords.
+     */
+    public static int indexOf(IElementType tokenType) {
+        Integer index = KEYWORD_INDICES.get(tokenType);
+        return index == null ? -1 : index;
+    }
+}
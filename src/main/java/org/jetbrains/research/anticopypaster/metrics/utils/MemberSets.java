@@ -1,7 +1,14 @@
 package org.jetbrains.research.anticopypaster.metrics.utils;
 
+import com.intellij.psi.PsiAnnotationMethod;
 import com.intellij.psi.PsiElement;
-import com.intellij.psi.PsiRecursiveElementVisitor;
+import com.intellij.psi.PsiEnumConstant;
+import com.intellij.psi.PsiField;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.PsiMethod;
+import com.intellij.psi.PsiRecursiveElementWalkingVisitor;
+import com.intellij.psi.util.CachedValueProvider;
+import com.intellij.psi.util.CachedValuesManager;
 import org.jetbrains.annotations.NotNull;
 
 import java.util.HashSet;
@@ -11,22 +18,29 @@ public class MemberSets {
     public Set<String> methods = new HashSet<>();
     public Set<String> fields = new HashSet<>();
 
+    /**
+     * Returns the names of the methods and fields declared in the file, which are cached until the file changes.
+     * The returned sets are shared and must not be modified.
+     */
+    public static MemberSets getMethodsAndFields(PsiFile file) {
+        return CachedValuesManager.getCachedValue(file, () ->
+                CachedValueProvider.Result.create(extractAllMethodsAndFields(file), file));
+    }
+
     public static MemberSets extractAllMethodsAndFields(PsiElement root) {
         final MemberSets result = new MemberSets();
-        root.accept(new PsiRecursiveElementVisitor() {
+        root.accept(new PsiRecursiveElementWalkingVisitor() {
             @Override
             public void visitElement(@NotNull PsiElement element) {
                 super.visitElement(element);
 
-                String[] elementSplit = element.toString().split(":");
-                if (elementSplit[0].equals("PsiMethod")) {
-                    String methodName = elementSplit[1];
-                    result.methods.add(methodName);
+                // Enum constants and annotation methods are not counted as members
+                if (element instanceof PsiMethod && !(element instanceof PsiAnnotationMethod)) {
+                    result.methods.add(((PsiMethod) element).getName());
                 }
 
-                if (elementSplit[0].equals("PsiField")) {
-                    String fieldName = elementSplit[1];
-                    result.fields.add(fieldName);
+                if (element instanceof PsiField && !(element instanceof PsiEnumConstant)) {
+                    result.fields.add(((PsiField) element).getName());
                 }
 
             }
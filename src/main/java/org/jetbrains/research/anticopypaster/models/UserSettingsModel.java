@@ -2,6 +2,7 @@ package org.jetbrains.research.anticopypaster.models;
 
 import com.intellij.openapi.project.ProjectManager;
 import org.jetbrains.research.anticopypaster.controller.CustomModelController;
+import org.jetbrains.research.anticopypaster.metrics.features.FeaturesColumns;
 import org.jetbrains.research.anticopypaster.metrics.features.FeaturesVector;
 import org.jetbrains.research.anticopypaster.utils.MetricsGatherer;
 import org.jetbrains.research.anticopypaster.utils.KeywordsMetrics;
@@ -10,7 +11,6 @@ import org.jetbrains.research.anticopypaster.utils.ComplexityMetrics;
 import org.jetbrains.research.anticopypaster.utils.Flag;
 
 import java.io.*;
-import java.util.List;
 import java.util.Scanner;
 
 
@@ -20,7 +20,6 @@ public class UserSettingsModel extends PredictionModel{
             .getBasePath() + "/.idea/custom_metrics.txt";
 
     private final int DEFAULT_SENSITIVITY = 2;
-    private MetricsGatherer metricsGatherer;
 
     private CustomModelController customModelController = CustomModelController.getInstance();
 
@@ -61,9 +60,9 @@ public class UserSettingsModel extends PredictionModel{
     thresholds
      */
     public void initMetricsGathererAndMetricsFlags(MetricsGatherer mg){
-        this.metricsGatherer = mg;
-
-        List<FeaturesVector> methodMetrics = mg.getMethodsMetrics();
+        // Takes the columns behind the gatherer's list without copying, mocked lists are copied.
+        // Neither the gatherer nor the columns are kept, the flags only keep the distributions of their metrics
+        FeaturesColumns methodMetrics = FeaturesColumns.of(mg.getMethodsMetrics());
         this.keywordsMetrics = new KeywordsMetrics(methodMetrics);
         this.complexityMetrics = new ComplexityMetrics(methodMetrics);
         this.sizeMetrics = new SizeMetrics(methodMetrics);
@@ -1,16 +1,28 @@
 package org.jetbrains.research.anticopypaster.utils;
 
+import org.jetbrains.research.anticopypaster.metrics.features.Feature;
+import org.jetbrains.research.anticopypaster.metrics.features.FeaturesColumns;
 import org.jetbrains.research.anticopypaster.metrics.features.FeaturesVector;
 
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 
 public class ComplexityMetrics extends Flag{
 
     public ComplexityMetrics(List<FeaturesVector> featuresVectorList){
-        super(featuresVectorList);
-        calculateAverageComplexityMetrics();
+        super();
+        calculateAverageComplexityMetrics(featuresVectorList);
+    }
+
+    /**
+     * Builds the flag from the features of the project methods stored by columns,
+     * reading only the complexity column.
+     */
+    public ComplexityMetrics(FeaturesColumns featuresColumns){
+        super();
+        for(int row = 0; row < featuresColumns.size(); row++){
+            metricValues.add(featuresColumns.get(row, Feature.Area));
+        }
+        boxPlotCalculationsFromSketch(metricValues);
     }
 
     /**
@@ -21,7 +33,7 @@ public class ComplexityMetrics extends Flag{
      */
     private float getComplexityMetricFromFV(FeaturesVector fv){
         if(fv != null){
-            lastCalculatedMetric = fv.buildArray()[3];
+            lastCalculatedMetric = (float) fv.getFeatureValue(Feature.Area);
             return lastCalculatedMetric;
         } else {
             return 0;
@@ -30,20 +42,17 @@ public class ComplexityMetrics extends Flag{
 
     /**
     This will iterate over all of the FeaturesVectors passed in to the
-    class, and then export only the relevant metric values to an array.
-    That array will then be sorted and run through the Flag boxplot 
+    class, and then add only the relevant metric values to the sketch.
+    The sketch is then run through the Flag boxplot 
     method to get Q1, Q2, and Q3 for the sensitivities
      */
-    private void calculateAverageComplexityMetrics(){
-        ArrayList<Float> complexityMetricsValues = new ArrayList<Float>();
-
+    private void calculateAverageComplexityMetrics(List<FeaturesVector> featuresVectorList){
         for(FeaturesVector f : featuresVectorList){
-            complexityMetricsValues.add(getComplexityMetricFromFV(f));
+            metricValues.add(getComplexityMetricFromFV(f));
         }
-
-        Collections.sort(complexityMetricsValues);
-        boxPlotCalculations(complexityMetricsValues);
+        boxPlotCalculationsFromSketch(metricValues);
     }
+
     /**
     Required override function from Flag. This just compares the complexity
     of the passed in FeaturesVector against the correct quartile value 
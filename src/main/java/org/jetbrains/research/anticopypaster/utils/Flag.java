@@ -5,13 +5,15 @@ import org.jetbrains.research.anticopypaster.metrics.features.FeaturesVector;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.List;
 
 public abstract class Flag{
 
     protected int sensitivity;
 
-    protected List<FeaturesVector> featuresVectorList;
+    /**
+     * The metric values of the methods the quartiles are calculated for.
+     */
+    protected final QuantileSketch metricValues = new QuantileSketch();
 
     protected float metricQ1;
     protected float metricQ2;
@@ -21,8 +23,10 @@ public abstract class Flag{
 
     public abstract boolean isFlagTriggered(FeaturesVector featuresVector);
 
-    public Flag(List<FeaturesVector> featuresVectorList){
-        this.featuresVectorList = featuresVectorList;
+    /**
+     * Creates a flag with no metric values, the subclasses fill {@link #metricValues} themselves.
+     */
+    protected Flag(){
         this.metricQ1=0;
         this.metricQ2=0;
         this.metricQ3=0;
@@ -34,8 +38,24 @@ public abstract class Flag{
     of those metric values
      */
     protected void boxPlotCalculations(ArrayList<Float> data){
+        if(data == null){
+            boxPlotCalculations(0, null);
+        } else {
+            boxPlotCalculations(data.size(), data::get);
+        }
+    }
+
+    /**
+    Generates/sets the Q1-3 values based on a box plot of the metric values
+    kept in the sketch
+     */
+    protected void boxPlotCalculationsFromSketch(QuantileSketch sketch){
+        boxPlotCalculations(sketch.size(), sketch::valueAt);
+    }
+
+    private void boxPlotCalculations(int size, SortedValues data){
 
-        if(data == null || data.size() == 0){
+        if(size == 0){
             metricQ1=0;
             metricQ2=0;
             metricQ3=0;
@@ -48,14 +68,14 @@ public abstract class Flag{
 
         // Box plot logic, for even length lists get the average between middle values
         // For odd length lists just get the middle index
-        if (data.size() % 2 == 0) {
-            q1 = (data.get(data.size()/4 - 1) + data.get(data.size()/4)) / 2;
-            q2 = (data.get(data.size()/2 - 1) + data.get(data.size()/2)) / 2;
-            q3 = (data.get(data.size()*3/4 - 1) + data.get(data.size()*3/4)) / 2;
+        if (size % 2 == 0) {
+            q1 = (data.get(size/4 - 1) + data.get(size/4)) / 2;
+            q2 = (data.get(size/2 - 1) + data.get(size/2)) / 2;
+            q3 = (data.get(size*3/4 - 1) + data.get(size*3/4)) / 2;
         } else {
-            q1 = data.get(data.size()/4);
-            q2 = data.get(data.size()/2);
-            q3 = data.get(data.size()*3/4);
+            q1 = data.get(size/4);
+            q2 = data.get(size/2);
+            q3 = data.get(size*3/4);
         }
         
         metricQ1 = q1;
@@ -63,6 +83,13 @@ public abstract class Flag{
         metricQ3 = q3;
     }
 
+    /**
+     * Values of a sorted collection by their index.
+     */
+    private interface SortedValues {
+        float get(int index);
+    }
+
     public float getMetricQ1(){
         return this.metricQ1;
     }
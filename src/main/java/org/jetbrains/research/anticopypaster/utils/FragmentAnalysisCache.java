@@ -0,0 +1,125 @@
+package org.jetbrains.research.anticopypaster.utils;
+
+import com.intellij.openapi.util.Key;
+import com.intellij.openapi.util.UserDataHolderBase;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Keeps the data derived from recently pasted code fragments, such as their correctness, tokens and fingerprints,
+ * since the same fragment is usually pasted many times and analyzed by several stages on every paste.
+ * Fragments that differ only in whitespaces share an entry, so only the data that doesn't depend on the exact
+ * whitespaces should be stored. The least recently used entries are evicted when there are more than
+ * {@link #MAX_ENTRIES} of them, or when the cached fragments are longer than {@link #MAX_WEIGHT} characters in total.
+ * Shared by all projects of the application.
+ */
+public final class FragmentAnalysisCache {
+    static final int MAX_ENTRIES = 128;
+    /**
+     * The derived data is roughly proportional to the fragment's length, so the length is used as the entry's weight.
+     */
+    static final long MAX_WEIGHT = 1 << 20;
+
+    private static final FragmentAnalysisCache INSTANCE = new FragmentAnalysisCache(MAX_ENTRIES, MAX_WEIGHT);
+
+    private final int maxEntries;
+    private final long maxWeight;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long weight = 0;
+
+    FragmentAnalysisCache(int maxEntries, long maxWeight) {
+        this.maxEntries = maxEntries;
+        this.maxWeight = maxWeight;
+    }
+
+    public static FragmentAnalysisCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the entry of the fragment, creating it if the fragment or one differing only in whitespaces
+     * wasn't analyzed recently.
+     */
+    public synchronized Entry get(String code) {
+        String normalizedCode = normalize(code);
+        Entry entry = entries.get(normalizedCode);
+        if (entry == null) {
+            entry = new Entry(normalizedCode);
+            entries.put(normalizedCode, entry);
+            weight += normalizedCode.length();
+            evict();
+        }
+        return entry;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Replaces every run of whitespaces with a single line break if the run contains one, or with a space otherwise,
+     * and trims the code. Keeping the line breaks keeps the meaning of line comments.
+     */
+    public static String normalize(String code) {
+        StringBuilder result = new StringBuilder(code.length());
+        boolean inWhitespaces = false;
+        boolean lineBreak = false;
+        for (int i = 0; i < code.length(); i++) {
+            char c = code.charAt(i);
+            if (Character.isWhitespace(c)) {
+                inWhitespaces = true;
+                lineBreak |= c == '\n' || c == '\r';
+                continue;
+            }
+            if (inWhitespaces && result.length() > 0) {
+                result.append(lineBreak ? '\n' : ' ');
+            }
+            inWhitespaces = false;
+            lineBreak = false;
+            result.append(c);
+        }
+        return result.toString();
+    }
+
+    private void evict() {
+        Iterator<Entry> iterator = entries.values().iterator();
+        // The newest entry is kept even if it's heavier than the limit on its own
+        while (entries.size() > 1 && (entries.size() > maxEntries || weight > maxWeight)) {
+            weight -= iterator.next().normalizedCode.length();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * The data derived from a fragment, stored under keys defined by the stages that use it.
+     */
+    public static final class Entry extends UserDataHolderBase {
+        private final String normalizedCode;
+
+        private Entry(String normalizedCode) {
+            this.normalizedCode = normalizedCode;
+        }
+
+        /**
+         * Returns the fragment with normalized whitespaces.
+         */
+        public String getNormalizedCode() {
+            return normalizedCode;
+        }
+
+        /**
+         * Returns the data stored under the key, computing and storing it first if needed.
+         * The data may be computed more than once if requested concurrently, but only one value is stored.
+         */
+        public <T> T getOrCompute(Key<T> key, Supplier<T> computation) {
+            T value = getUserData(key);
+            if (value == null) {
+                value = putUserDataIfAbsent(key, computation.get());
+            }
+            return value;
+        }
+    }
+}
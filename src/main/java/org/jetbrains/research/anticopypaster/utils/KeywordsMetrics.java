@@ -1,15 +1,35 @@
 package org.jetbrains.research.anticopypaster.utils;
 
+import org.jetbrains.research.anticopypaster.metrics.features.Feature;
+import org.jetbrains.research.anticopypaster.metrics.features.FeaturesColumns;
 import org.jetbrains.research.anticopypaster.metrics.features.FeaturesVector;
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 
 public class KeywordsMetrics extends Flag{
 
     public KeywordsMetrics(List<FeaturesVector> featuresVectorList){
-        super(featuresVectorList);
-        calculateAverageKeywordsMetrics();
+        super();
+        calculateAverageKeywordsMetrics(featuresVectorList);
+    }
+
+    /**
+     * Builds the flag from the features of the project methods stored by columns,
+     * summing up the keyword columns of each method.
+     */
+    public KeywordsMetrics(FeaturesColumns featuresColumns){
+        super();
+        int size = featuresColumns.size();
+        int[] totalKeywords = new int[size];
+        // Column by column, so that each column is read sequentially
+        for(int i = 16; i<77; i+=2){
+            for(int row = 0; row < size; row++){
+                totalKeywords[row] += featuresColumns.get(row, i);
+            }
+        }
+        for(int total : totalKeywords){
+            metricValues.add(total);
+        }
+        boxPlotCalculationsFromSketch(metricValues);
     }
 
     /**
@@ -19,10 +39,9 @@ public class KeywordsMetrics extends Flag{
      */
     private float getKeywordsMetricFromFV(FeaturesVector fv){
         if(fv != null){
-            float[] fvArray = fv.buildArray();
             int totalKeywords = 0;
             for(int i = 16; i<77; i+=2){
-                totalKeywords += fvArray[i];
+                totalKeywords += fv.getFeatureValue(Feature.fromId(i));
             }
             lastCalculatedMetric = totalKeywords;
             return lastCalculatedMetric;
@@ -33,22 +52,17 @@ public class KeywordsMetrics extends Flag{
 
     /**
     This will iterate over all of the FeaturesVectors passed in to the
-    class, and then export only the relevant metric values to an array.
-    That array will then be sorted and run through the Flag boxplot 
+    class, and then add only the relevant metric values to the sketch.
+    The sketch is then run through the Flag boxplot 
     method to get Q1, Q2, and Q3 for the sensitivities
      */
-    private void calculateAverageKeywordsMetrics(){
-        ArrayList<Float> keywordsMetricsValues = new ArrayList<Float>();
-
+    private void calculateAverageKeywordsMetrics(List<FeaturesVector> featuresVectorList){
         for(FeaturesVector f : featuresVectorList){
-            keywordsMetricsValues.add(getKeywordsMetricFromFV(f));
+            metricValues.add(getKeywordsMetricFromFV(f));
         }
-
-        Collections.sort(keywordsMetricsValues);
-        boxPlotCalculations(keywordsMetricsValues);
+        boxPlotCalculationsFromSketch(metricValues);
     }
 
-
     /**
     Required override function from Flag. This just compares the keywords
     of the passed in FeaturesVector against the correct quartile value 
@@ -0,0 +1,293 @@
+package org.jetbrains.research.anticopypaster.utils;
+
+import com.intellij.concurrency.JobLauncher;
+import com.intellij.ide.highlighter.JavaFileType;
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.fileEditor.FileDocumentManager;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.progress.util.ProgressIndicatorUtils;
+import com.intellij.openapi.project.DumbService;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.PsiManager;
+import com.intellij.psi.PsiMethod;
+import com.intellij.psi.search.FileTypeIndex;
+import com.intellij.psi.search.GlobalSearchScope;
+import com.intellij.psi.util.PsiTreeUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.research.anticopypaster.metrics.MetricCalculator;
+import org.jetbrains.research.anticopypaster.metrics.features.FeaturesColumns;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the metrics of every method of the project, which are used as the baseline for the model's thresholds.
+ * The metrics of a file's methods are calculated once and dropped on any PSI change of the file, so gathering them
+ * again only recalculates the files changed since the previous gathering. The whole file is recalculated, since
+ * the coupling features of a method depend on the other members of its file.
+ * The metrics of saved files are also persisted by {@link MethodMetricsStorage}, so after a restart
+ * only the files changed since the previous session are parsed.
+ * The index is the only long-living owner of the metrics, the columns it returns are copies for a single use.
+ */
+public final class MethodMetricsIndex implements Disposable {
+    /**
+     * Number of files processed under a single read action, small enough not to delay write actions for long.
+     */
+    private static final int FILES_PER_BATCH = 8;
+    private final Project project;
+    // Keyed by the virtual files, so that the index doesn't keep the PSI of the project in memory
+    private final Map<VirtualFile, FileMetrics> files = new ConcurrentHashMap<>();
+    private final AtomicLong changedMethodsCount = new AtomicLong();
+    private final MethodMetricsStorage storage;
+    // Whether the metrics saved by the storage differ from the persisted metrics of the files
+    private volatile boolean storageOutdated = false;
+    private volatile CompletableFuture<?> warmUpFinished = CompletableFuture.completedFuture(null);
+    private volatile boolean baselineComplete = false;
+    private volatile boolean warmingUp = false;
+
+    public MethodMetricsIndex(Project project) {
+        this.project = project;
+        this.storage = new MethodMetricsStorage(project);
+        PsiManager.getInstance(project).addPsiTreeChangeListener(new PsiMethodChangeListener() {
+            @Override
+            protected void methodChanged(@NotNull PsiMethod method) {
+                invalidate(method.getContainingFile());
+            }
+
+            @Override
+            protected void fileChanged(@NotNull PsiFile file) {
+                invalidate(file);
+            }
+        }, this);
+    }
+
+    private void invalidate(@Nullable PsiFile file) {
+        VirtualFile virtualFile = file == null ? null : file.getVirtualFile();
+        FileMetrics fileMetrics = virtualFile == null ? null : files.remove(virtualFile);
+        // Further changes of the file are not counted until its metrics are gathered again
+        if (fileMetrics != null) {
+            changedMethodsCount.addAndGet(Math.max(1, fileMetrics.metrics.size()));
+            storageOutdated |= fileMetrics.stored != null;
+        }
+    }
+
+    public static MethodMetricsIndex getInstance(Project project) {
+        return project.getService(MethodMetricsIndex.class);
+    }
+
+    /**
+     * Returns the number of gathered methods whose metrics were dropped because their files were changed,
+     * counting the methods of a file once until the file's metrics are gathered again. The users of
+     * {@link #getMethodsMetrics()} can compare it with the number at the moment of their gathering to tell
+     * how outdated their copy is.
+     */
+    public long getChangedMethodsCount() {
+        return changedMethodsCount.get();
+    }
+
+    /**
+     * Returns true after the metrics of all methods were gathered at least once.
+     */
+    public boolean isBaselineComplete() {
+        return baselineComplete;
+    }
+
+    /**
+     * Returns true while {@link #warmUp} is running.
+     */
+    public boolean isWarmingUp() {
+        return warmingUp;
+    }
+
+    /**
+     * Returns the metrics gathered so far by the running {@link #warmUp}, or no metrics if it isn't running.
+     */
+    public FeaturesColumns getPartialMethodsMetrics() {
+        FeaturesColumns metrics = new FeaturesColumns(FeaturesColumns.DIMENSION);
+        if (warmingUp) {
+            for (FileMetrics fileMetrics : files.values()) {
+                metrics.addAll(fileMetrics.metrics);
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * Waits until the running {@link #warmUp} finishes or is cancelled, so that {@link #getMethodsMetrics()}
+     * reuses its results instead of gathering the same files at the same time.
+     *
+     * @throws com.intellij.openapi.progress.ProcessCanceledException if the calling thread is cancelled meanwhile.
+     */
+    public void awaitWarmUp() {
+        ProgressIndicatorUtils.awaitWithCheckCanceled(warmUpFinished);
+    }
+
+    /**
+     * Gathers the metrics of all methods like {@link #getMethodsMetrics()}, reporting the progress to the indicator
+     * and making the metrics gathered so far available via {@link #getPartialMethodsMetrics()}.
+     */
+    public void warmUp(ProgressIndicator indicator) {
+        CompletableFuture<?> finished = new CompletableFuture<>();
+        warmUpFinished = finished;
+        warmingUp = true;
+        try {
+            gather(indicator, null);
+            baselineComplete = true;
+        } finally {
+            warmingUp = false;
+            finished.complete(null);
+        }
+    }
+
+    /**
+     * Returns the metrics of all methods in the Java files of the project, except for the test files.
+     * Only the methods changed since the previous call are recalculated, and the files not changed since they were
+     * persisted are not parsed at all. The files are processed in parallel in small batches, each batch in a single
+     * read action in smart mode, waiting for the indexing to finish if needed.
+     * Should not be called inside a read action.
+     */
+    public FeaturesColumns getMethodsMetrics() {
+        FeaturesColumns methodsMetrics = new FeaturesColumns(FeaturesColumns.DIMENSION);
+        gather(null, methodsMetrics);
+        baselineComplete = true;
+        return methodsMetrics;
+    }
+
+    /**
+     * Gathers the metrics of all methods into the files, adding them to the columns too if they are given.
+     */
+    private void gather(@Nullable ProgressIndicator indicator, @Nullable FeaturesColumns methodsMetrics) {
+        DumbService dumbService = DumbService.getInstance(project);
+        Collection<VirtualFile> virtualFiles = dumbService.runReadActionInSmartMode(() ->
+                FileTypeIndex.getFiles(JavaFileType.INSTANCE, GlobalSearchScope.projectScope(project)));
+        List<VirtualFile> sourceFiles = new ArrayList<>(virtualFiles.size());
+        for (VirtualFile virtualFile : virtualFiles) {
+            if (!isTestFile(virtualFile)) {
+                sourceFiles.add(virtualFile);
+            }
+        }
+        List<List<VirtualFile>> batches = new ArrayList<>();
+        for (int from = 0; from < sourceFiles.size(); from += FILES_PER_BATCH) {
+            batches.add(sourceFiles.subList(from, Math.min(from + FILES_PER_BATCH, sourceFiles.size())));
+        }
+
+        // The files are processed on the shared fork-join pool, with the calling thread taking part too
+        AtomicInteger processedFiles = new AtomicInteger();
+        boolean finished = JobLauncher.getInstance().invokeConcurrentlyUnderProgress(batches, indicator, batch -> {
+            List<float[]> batchMetrics = dumbService.runReadActionInSmartMode(() -> {
+                List<float[]> result = new ArrayList<>();
+                for (VirtualFile virtualFile : batch) {
+                    ProgressManager.checkCanceled();
+                    result.addAll(getFileMethodsMetrics(virtualFile));
+                }
+                return result;
+            });
+            if (methodsMetrics != null) {
+                methodsMetrics.addAll(batchMetrics);
+            }
+            if (indicator != null) {
+                indicator.setFraction((double) processedFiles.addAndGet(batch.size()) / sourceFiles.size());
+            }
+            return true;
+        });
+        if (!finished) {
+            throw new ProcessCanceledException();
+        }
+        // The deleted files and the stored metrics of the files not in the project anymore are dropped
+        if (files.keySet().retainAll(new HashSet<>(sourceFiles)) | storage.release()) {
+            storageOutdated = true;
+        }
+        if (storageOutdated) {
+            storageOutdated = false;
+            storage.save(getStoredFiles());
+        }
+    }
+
+    private Map<String, MethodMetricsStorage.StoredFile> getStoredFiles() {
+        Map<String, MethodMetricsStorage.StoredFile> storedFiles = new HashMap<>();
+        files.forEach((virtualFile, fileMetrics) -> {
+            if (fileMetrics.stored != null) {
+                storedFiles.put(virtualFile.getPath(), fileMetrics.stored);
+            }
+        });
+        return storedFiles;
+    }
+
+    /**
+     * Returns the metrics of the file's methods, calculating them only if the file was changed since they were
+     * gathered or persisted. Must be called inside a read action.
+     */
+    private List<float[]> getFileMethodsMetrics(VirtualFile virtualFile) {
+        PsiFile file = virtualFile.isValid() ? PsiManager.getInstance(project).findFile(virtualFile) : null;
+        if (file == null) {
+            return List.of();
+        }
+        // The persisted metrics describe the content on disk, which differs from the unsaved one
+        boolean saved = !FileDocumentManager.getInstance().isFileModified(virtualFile);
+        FileMetrics fileMetrics = files.get(virtualFile);
+        if (fileMetrics == null) {
+            List<float[]> storedMetrics = saved ? storage.take(virtualFile) : null;
+            fileMetrics = new FileMetrics(storedMetrics != null ? storedMetrics : calculate(file));
+            if (storedMetrics != null) {
+                fileMetrics.stored = new MethodMetricsStorage.StoredFile(virtualFile, storedMetrics);
+            }
+            // PSI changes happen in write actions, so the file can't be changed since the calculation
+            files.put(virtualFile, fileMetrics);
+        }
+        if (saved && fileMetrics.stored == null) {
+            fileMetrics.stored = new MethodMetricsStorage.StoredFile(virtualFile, fileMetrics.metrics);
+            storageOutdated = true;
+        }
+        return fileMetrics.metrics;
+    }
+
+    private static List<float[]> calculate(PsiFile file) {
+        Collection<PsiMethod> methods = PsiTreeUtil.findChildrenOfType(file, PsiMethod.class);
+        List<float[]> result = new ArrayList<>(methods.size());
+        for (PsiMethod method : methods) {
+            int startLine = PsiUtil.getNumberOfLine(file, method.getTextRange().getStartOffset());
+            int endLine = PsiUtil.getNumberOfLine(file, method.getTextRange().getEndOffset());
+            result.add(new MetricCalculator(method, method.getText(), method.getTextRange(), startLine, endLine)
+                    .getFeaturesVector().buildArray());
+        }
+        return result;
+    }
+
+    @Override
+    public void dispose() {
+        files.clear();
+    }
+
+    /**
+     * Returns true for the files named like tests, e.g. {@code TestCalculator.java} or {@code CalculatorTest.java}.
+     */
+    private static boolean isTestFile(VirtualFile file) {
+        // Makes everything lowercase for consistency, and gets rid of file extension
+        String filename = file.getName().toLowerCase().split("[.]")[0];
+        return filename.startsWith("test") || filename.endsWith("test");
+    }
+
+    private static final class FileMetrics {
+        // A primitive array per method instead of a vector of boxed items keeps the baseline of a large project small
+        private final List<float[]> metrics;
+        // The same metrics with the state of the file on disk, once the file is saved
+        private volatile MethodMetricsStorage.StoredFile stored = null;
+
+        private FileMetrics(List<float[]> metrics) {
+            this.metrics = metrics;
+        }
+    }
+}
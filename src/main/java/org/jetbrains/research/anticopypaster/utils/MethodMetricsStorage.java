@@ -0,0 +1,163 @@
+package org.jetbrains.research.anticopypaster.utils;
+
+import com.intellij.openapi.application.PathManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vfs.VirtualFile;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Stores the metrics of the methods of every file of a project in a binary file under the IDE system directory,
+ * so that the metrics of the files not changed since the previous IDE session are not recalculated.
+ * The metrics of a method are its feature values ordered by the feature id.
+ * A file's metrics are valid while its path, timestamp and length on disk are the same as at the moment of saving.
+ * The loaded metrics are only kept until {@link MethodMetricsIndex} takes them, the index owns them afterwards.
+ */
+final class MethodMetricsStorage {
+    private static final Logger LOG = Logger.getInstance(MethodMetricsStorage.class);
+
+    /**
+     * Should be increased on every change of the metrics calculation, so that the outdated metrics are dropped.
+     */
+    static final int VERSION = 1;
+
+    private final Path path;
+    private Map<String, StoredFile> storedFiles = new HashMap<>();
+    private boolean loaded = false;
+
+    MethodMetricsStorage(Project project) {
+        this(Paths.get(PathManager.getSystemPath(), "anticopypaster", project.getLocationHash(),
+                "method-metrics.bin"));
+    }
+
+    MethodMetricsStorage(Path path) {
+        this.path = path;
+    }
+
+    /**
+     * Returns the stored metrics of the file's methods and forgets them, or null if there are none or the file
+     * was changed since.
+     */
+    @Nullable
+    synchronized List<float[]> take(VirtualFile file) {
+        load();
+        StoredFile storedFile = storedFiles.remove(file.getPath());
+        if (storedFile == null || !storedFile.isValidFor(file)) {
+            return null;
+        }
+        return storedFile.metrics;
+    }
+
+    /**
+     * Forgets the loaded metrics that were not taken, which are of the files deleted or changed since they were saved.
+     *
+     * @return true if there were any, so the saved metrics are outdated.
+     */
+    synchronized boolean release() {
+        load();
+        boolean released = !storedFiles.isEmpty();
+        storedFiles = new HashMap<>();
+        return released;
+    }
+
+    /**
+     * Writes the metrics of the given files to disk, replacing the previously saved ones.
+     *
+     * @param storedFiles the metrics by the file paths.
+     */
+    synchronized void save(Map<String, StoredFile> storedFiles) {
+        try {
+            Files.createDirectories(path.getParent());
+            Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+                out.writeInt(VERSION);
+                out.writeInt(storedFiles.size());
+                for (Map.Entry<String, StoredFile> entry : storedFiles.entrySet()) {
+                    StoredFile storedFile = entry.getValue();
+                    out.writeUTF(entry.getKey());
+                    out.writeLong(storedFile.timeStamp);
+                    out.writeLong(storedFile.length);
+                    out.writeInt(storedFile.metrics.size());
+                    for (float[] values : storedFile.metrics) {
+                        out.writeShort(values.length);
+                        for (float value : values) {
+                            out.writeFloat(value);
+                        }
+                    }
+                }
+            }
+            // Never leaves a partially written file, even if the IDE is killed while saving
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOG.warn("[ACP] Failed to save the metrics of the project methods.", e);
+        }
+    }
+
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != VERSION) {
+                return;
+            }
+            int filesCount = in.readInt();
+            for (int i = 0; i < filesCount; i++) {
+                String filePath = in.readUTF();
+                long timeStamp = in.readLong();
+                long length = in.readLong();
+                int methodsCount = in.readInt();
+                List<float[]> metrics = new ArrayList<>(methodsCount);
+                for (int j = 0; j < methodsCount; j++) {
+                    float[] values = new float[in.readShort()];
+                    for (int k = 0; k < values.length; k++) {
+                        values[k] = in.readFloat();
+                    }
+                    metrics.add(values);
+                }
+                storedFiles.put(filePath, new StoredFile(timeStamp, length, metrics));
+            }
+        } catch (IOException | RuntimeException e) {
+            // The metrics are recalculated from scratch, so a corrupted file only costs time
+            LOG.warn("[ACP] Failed to load the metrics of the project methods.", e);
+            storedFiles.clear();
+        }
+    }
+
+    /**
+     * The metrics of a file's methods together with the file's timestamp and length on disk they were calculated for.
+     */
+    static final class StoredFile {
+        private final long timeStamp;
+        private final long length;
+        private final List<float[]> metrics;
+
+        StoredFile(VirtualFile file, List<float[]> metrics) {
+            this(file.getTimeStamp(), file.getLength(), metrics);
+        }
+
+        private StoredFile(long timeStamp, long length, List<float[]> metrics) {
+            this.timeStamp = timeStamp;
+            this.length = length;
+            this.metrics = metrics;
+        }
+
+        boolean isValidFor(VirtualFile file) {
+            return timeStamp == file.getTimeStamp() && length == file.getLength();
+        }
+    }
+}
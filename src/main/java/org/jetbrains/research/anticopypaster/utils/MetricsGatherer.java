@@ -1,106 +1,119 @@
 package org.jetbrains.research.anticopypaster.utils;
 
-import com.intellij.ide.highlighter.JavaFileType;
-import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.project.ProjectManager;
-import com.intellij.openapi.vfs.VirtualFile;
-import com.intellij.psi.*;
-
-import com.intellij.psi.search.FileTypeIndex;
-import com.intellij.psi.search.GlobalSearchScope;
-import com.intellij.psi.util.PsiTreeUtil;
-import org.jetbrains.research.anticopypaster.metrics.MetricCalculator;
+import org.jetbrains.research.anticopypaster.metrics.features.FeaturesColumns;
 import org.jetbrains.research.anticopypaster.metrics.features.FeaturesVector;
 
-import java.util.ArrayList;
-import java.util.Collection;
 import java.util.List;
 
 /**
  * This class is used to gather metrics from every method within the currently
  * open IntelliJ Project. If multiple IntelliJ Projects are currently in use,
  * only the first project will be scoured.
+ * The metrics are taken from the {@link MethodMetricsIndex} of the project,
+ * so only the methods changed since the previous gathering are recalculated.
  */
 public class MetricsGatherer {
     /**
-     * A list of all the FeaturesVectors for all methods within
-     * the IntelliJ Project.
+     * The features of all methods within the IntelliJ Project,
+     * one column per feature. Null once released.
+     */
+    private FeaturesColumns methodsMetrics;
+    private final int methodsCount;
+    private final MethodMetricsIndex index;
+    /**
+     * The number of changed methods of the index at the moment of gathering.
+     */
+    private final long changedMethodsCount;
+    /**
+     * Whether the metrics are only of a part of the project's methods.
+     */
+    private final boolean partial;
+    /**
+     * The minimal number of methods that gives meaningful quartiles, smaller partial metrics are not used.
+     */
+    private static final int MIN_PARTIAL_METHODS = 100;
+    /**
+     * The metrics are outdated once at least this number and {@link #MIN_CHANGED_SHARE} of the gathered methods
+     * were changed. A few changed methods barely move the quartiles, so they are not worth gathering the metrics again.
      */
-    private List<FeaturesVector> methodsMetrics;
+    private static final int MIN_CHANGED_METHODS = 50;
+    private static final double MIN_CHANGED_SHARE = 0.05;
 
     /**
-     * Builds an instance of the MetricsGatherer and
-     * does the initial (and only) metrics gathering.
+     * Builds an instance of the MetricsGatherer for the first currently opened project
+     * and gathers the metrics.
      */
     public MetricsGatherer(){
-        this.methodsMetrics = new ArrayList<>();
-        gatherMetrics();
+        this(ProjectManager.getInstance().getOpenProjects()[0]);
     }
 
     /**
-     * Getter for the methodsMetrics.
-     * @return the list of featuresVectors made by the gatherer.
+     * Builds an instance of the MetricsGatherer for the project and gathers the metrics.
      */
-    public List<FeaturesVector> getMethodsMetrics(){
-        return this.methodsMetrics;
+    public MetricsGatherer(Project project){
+        this(project, false);
     }
+
     /**
-     * Gathers all the metrics from every method within the IntelliJ Project.
+     * Builds an instance of the MetricsGatherer for the project.
+     * While the metrics of the project are being gathered in the background, waits for the background gathering
+     * to finish instead of gathering the same metrics at the same time.
+     * @param allowPartial if true, takes the metrics gathered in the background so far instead of waiting,
+     *                     unless there are too few of them.
      */
-    private void gatherMetrics(){
-        // Gets the first currently opened project
-        Project project = ProjectManager.getInstance().getOpenProjects()[0];
-
-        var vfCollectionWrapper = new Object(){ Collection<VirtualFile> vfCollection = null; };
-        ApplicationManager.getApplication().runReadAction(() -> {
-            // Gets all Java files from the Project
-            vfCollectionWrapper.vfCollection = FileTypeIndex.getFiles(
-                    JavaFileType.INSTANCE,
-                    GlobalSearchScope.projectScope(project));
-        });
-        Collection<VirtualFile> vfCollection = vfCollectionWrapper.vfCollection;
-        // Gets a PsiFile for every Java file in the project
-        List<PsiFile> pfList = new ArrayList<>();
-        for (VirtualFile file : vfCollection) {
-            // Makes everything lowercase for consistency, and gets rid of file extension
-            String filename = file.getName().toLowerCase().split("[.]")[0];
-            if (!filename.startsWith("test") && !filename.endsWith("test")) {
-                ApplicationManager.getApplication().runReadAction(() -> {
-                    pfList.add(PsiManager.getInstance(project).findFile(file));
-                });
-
-            }
+    public MetricsGatherer(Project project, boolean allowPartial){
+        this.index = MethodMetricsIndex.getInstance(project);
+        // Taken before gathering, so that changes made meanwhile make the gathered metrics outdated
+        this.changedMethodsCount = index.getChangedMethodsCount();
+        FeaturesColumns partialMetrics = allowPartial && index.isWarmingUp()
+                ? index.getPartialMethodsMetrics()
+                : null;
+        this.partial = partialMetrics != null && partialMetrics.size() >= MIN_PARTIAL_METHODS;
+        if (!this.partial) {
+            // The files gathered by the warm-up are not calculated again
+            index.awaitWarmUp();
         }
+        this.methodsMetrics = this.partial ? partialMetrics : index.getMethodsMetrics();
+        this.methodsCount = this.methodsMetrics.size();
+    }
 
-        // Gets all the PsiMethods, as well as their start and end lines.
-        for(PsiFile psiFile: pfList) {
-            // wrappers are used to get information out of runReadActions.
-            // PsiTree's can't be accessed outside a read action, or it
-            // can cause race conditions.
-            var psiMethodWrapper = new Object() {
-                Collection<PsiMethod> psiMethods = null;
-            };
-            ApplicationManager.getApplication().runReadAction(() -> {
-                psiMethodWrapper.psiMethods = PsiTreeUtil.findChildrenOfType(psiFile, PsiMethod.class);
-            });
+    /**
+     * Getter for the methodsMetrics.
+     * @return the list of featuresVectors made by the gatherer, which is a view
+     * of {@link #getMethodsMetricsColumns()}.
+     */
+    public List<FeaturesVector> getMethodsMetrics(){
+        return getMethodsMetricsColumns().asVectors();
+    }
 
-            Collection<PsiMethod> psiMethods = psiMethodWrapper.psiMethods;
-            for (PsiMethod method : psiMethods) {
-                int startLine = PsiUtil.getNumberOfLine(psiFile, method.getTextRange().getStartOffset());
-                int endLine = PsiUtil.getNumberOfLine(psiFile, method.getTextRange().getEndOffset());
+    /**
+     * Getter for the methodsMetrics.
+     * @return the features gathered by the gatherer, one column per feature.
+     */
+    public FeaturesColumns getMethodsMetricsColumns(){
+        if(this.methodsMetrics == null){
+            throw new IllegalStateException("The metrics were released");
+        }
+        return this.methodsMetrics;
+    }
 
-                var fvWrapper = new Object() {
-                    FeaturesVector features = null;
-                };
-                ApplicationManager.getApplication().runReadAction(() -> {
-                    fvWrapper.features = new
-                            MetricCalculator(method, method.getText(), startLine, endLine).getFeaturesVector();
-                });
+    /**
+     * Drops the gathered metrics once they were used, so that only the {@link MethodMetricsIndex} keeps
+     * the metrics of the project's methods. {@link #isOutdated()} can still be called afterwards.
+     */
+    public void releaseMetrics(){
+        this.methodsMetrics = null;
+    }
 
-                FeaturesVector features = fvWrapper.features;
-                this.methodsMetrics.add(features);
-            }
-        }
+    /**
+     * Returns true if the metrics are only of a part of the project's methods, or enough methods of the project
+     * were changed since the metrics were gathered.
+     */
+    public boolean isOutdated(){
+        long changedMethods = this.index.getChangedMethodsCount() - this.changedMethodsCount;
+        return this.partial || changedMethods >= Math.max(MIN_CHANGED_METHODS,
+                MIN_CHANGED_SHARE * this.methodsCount);
     }
 }
@@ -0,0 +1,85 @@
+package org.jetbrains.research.anticopypaster.utils;
+
+import com.intellij.psi.*;
+import com.intellij.psi.util.PsiTreeUtil;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Translates PSI tree change events into method-level notifications, so that caches built per method
+ * can be invalidated incrementally instead of being rebuilt for the whole file on every change.
+ */
+public abstract class PsiMethodChangeListener extends PsiTreeChangeAdapter {
+
+    /**
+     * Called for every method (including the enclosing ones) whose text was changed.
+     */
+    protected abstract void methodChanged(@NotNull PsiMethod method);
+
+    /**
+     * Called when the change can't be attributed to a method body, e.g. a method was added or removed,
+     * or the whole file was reparsed or deleted.
+     */
+    protected abstract void fileChanged(@NotNull PsiFile file);
+
+    @Override
+    public void childAdded(@NotNull PsiTreeChangeEvent event) {
+        handle(event);
+    }
+
+    @Override
+    public void childRemoved(@NotNull PsiTreeChangeEvent event) {
+        handle(event);
+    }
+
+    @Override
+    public void childReplaced(@NotNull PsiTreeChangeEvent event) {
+        handle(event);
+    }
+
+    @Override
+    public void childrenChanged(@NotNull PsiTreeChangeEvent event) {
+        handle(event);
+    }
+
+    @Override
+    public void childMoved(@NotNull PsiTreeChangeEvent event) {
+        handle(event);
+    }
+
+    @Override
+    public void propertyChanged(@NotNull PsiTreeChangeEvent event) {
+        if (event.getElement() instanceof PsiFile) {
+            fileChanged((PsiFile) event.getElement());
+        } else if (event.getFile() != null) {
+            fileChanged(event.getFile());
+        }
+    }
+
+    private void handle(PsiTreeChangeEvent event) {
+        PsiFile file = event.getFile();
+        if (file == null) {
+            // Files added to or removed from a directory come without a containing file
+            if (event.getChild() instanceof PsiFile) {
+                fileChanged((PsiFile) event.getChild());
+            }
+            return;
+        }
+
+        PsiElement child = event.getChild();
+        if (child instanceof PsiMethod || child instanceof PsiClass) {
+            fileChanged(file);
+            return;
+        }
+
+        PsiMethod method = PsiTreeUtil.getParentOfType(event.getParent(), PsiMethod.class, false);
+        if (method == null) {
+            fileChanged(file);
+            return;
+        }
+        // Methods of local and anonymous classes are a part of the text of the enclosing methods too
+        while (method != null) {
+            methodChanged(method);
+            method = PsiTreeUtil.getParentOfType(method, PsiMethod.class, true);
+        }
+    }
+}
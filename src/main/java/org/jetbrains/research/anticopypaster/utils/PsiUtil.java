@@ -173,4 +173,18 @@ public class PsiUtil {
 
         return Math.max(0, rawLocs - totalUnused - totalCountWithComment);
     }
+
+    /**
+     * Removes all whitespace characters (as matched by the {@code \\s} regex class) from the text.
+     */
+    public static String removeWhitespaces(String text) {
+        StringBuilder result = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\r' && c != '\f' && c != '\u000B') {
+                result.append(c);
+            }
+        }
+        return result.toString();
+    }
 }
@@ -0,0 +1,157 @@
+package org.jetbrains.research.anticopypaster.utils;
+
+import java.util.Arrays;
+
+/**
+ * Keeps a multiset of metric values as counts of distinct values, so that the order statistics used for the box plot
+ * can be taken without keeping and sorting all values. Values can be added and removed.
+ * Metric values are mostly small integers, so the statistics are exact in practice. Memory is still bounded:
+ * beyond {@link #MAX_DISTINCT_VALUES} distinct values, the closest ones are merged in one batch, down to
+ * {@link #COMPACTED_DISTINCT_VALUES}, so that the cost of the compaction is shared by many additions.
+ */
+public class QuantileSketch {
+    static final int MAX_DISTINCT_VALUES = 4096;
+    static final int COMPACTED_DISTINCT_VALUES = MAX_DISTINCT_VALUES * 3 / 4;
+    private static final int BUFFER_SIZE = 256;
+
+    // Sorted distinct values and their counts
+    private float[] values = new float[16];
+    private int[] counts = new int[16];
+    private int distinct = 0;
+    // Added values that are not merged into the counts yet
+    private final float[] buffer = new float[BUFFER_SIZE];
+    private int buffered = 0;
+    private int size = 0;
+
+    public void add(float value) {
+        buffer[buffered++] = value;
+        size++;
+        if (buffered == BUFFER_SIZE) {
+            flush();
+        }
+    }
+
+    /**
+     * Removes one occurrence of the value, or of the closest value kept if the value was merged into it.
+     */
+    public void remove(float value) {
+        flush();
+        if (distinct == 0) {
+            return;
+        }
+        int index = closestIndex(value);
+        if (--counts[index] == 0) {
+            System.arraycopy(values, index + 1, values, index, distinct - index - 1);
+            System.arraycopy(counts, index + 1, counts, index, distinct - index - 1);
+            distinct--;
+        }
+        size--;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the value that would be at the given index if all values were sorted in the ascending order.
+     */
+    public float valueAt(int rank) {
+        if (rank < 0 || rank >= size) {
+            throw new IndexOutOfBoundsException("Rank " + rank + " is out of bounds for size " + size);
+        }
+        flush();
+        int seen = 0;
+        for (int i = 0; i < distinct; i++) {
+            seen += counts[i];
+            if (rank < seen) {
+                return values[i];
+            }
+        }
+        throw new IllegalStateException("Counts don't sum up to the size");
+    }
+
+    private int closestIndex(float value) {
+        int index = Arrays.binarySearch(values, 0, distinct, value);
+        if (index >= 0) {
+            return index;
+        }
+        int higher = -index - 1;
+        if (higher == 0 || higher == distinct) {
+            return higher == 0 ? 0 : distinct - 1;
+        }
+        return value - values[higher - 1] <= values[higher] - value ? higher - 1 : higher;
+    }
+
+    /**
+     * Merges the buffered values into the sorted distinct values, compacting them if there are too many.
+     */
+    private void flush() {
+        if (buffered == 0) {
+            return;
+        }
+        Arrays.sort(buffer, 0, buffered);
+        float[] mergedValues = new float[Math.max(values.length, distinct + buffered)];
+        int[] mergedCounts = new int[mergedValues.length];
+        int merged = 0;
+        int i = 0;
+        int j = 0;
+        while (i < distinct || j < buffered) {
+            float value;
+            int count;
+            if (j == buffered || (i < distinct && values[i] <= buffer[j])) {
+                value = values[i];
+                count = counts[i++];
+            } else {
+                value = buffer[j++];
+                count = 1;
+            }
+            if (merged > 0 && mergedValues[merged - 1] == value) {
+                mergedCounts[merged - 1] += count;
+            } else {
+                mergedValues[merged] = value;
+                mergedCounts[merged++] = count;
+            }
+        }
+        values = mergedValues;
+        counts = mergedCounts;
+        distinct = merged;
+        buffered = 0;
+        if (distinct > MAX_DISTINCT_VALUES) {
+            compact();
+        }
+    }
+
+    /**
+     * Merges neighbouring values with the smallest gaps between them into their weighted mean, until at most
+     * {@link #COMPACTED_DISTINCT_VALUES} distinct values are left. Every pass merges disjoint pairs whose gap is
+     * not larger than the gap that would have to be merged to reach the target.
+     */
+    private void compact() {
+        while (distinct > COMPACTED_DISTINCT_VALUES) {
+            int needed = distinct - COMPACTED_DISTINCT_VALUES;
+            float[] gaps = new float[distinct - 1];
+            for (int i = 0; i < gaps.length; i++) {
+                gaps[i] = values[i + 1] - values[i];
+            }
+            float[] sortedGaps = gaps.clone();
+            Arrays.sort(sortedGaps);
+            float threshold = sortedGaps[needed - 1];
+
+            int kept = 0;
+            int i = 0;
+            while (i < distinct) {
+                if (needed > 0 && i + 1 < distinct && gaps[i] <= threshold) {
+                    int count = counts[i] + counts[i + 1];
+                    values[kept] = (float) (((double) values[i] * counts[i] + (double) values[i + 1] * counts[i + 1]) / count);
+                    counts[kept++] = count;
+                    needed--;
+                    i += 2;
+                } else {
+                    values[kept] = values[i];
+                    counts[kept++] = counts[i++];
+                }
+            }
+            distinct = kept;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package org.jetbrains.research.anticopypaster.utils;
+
+/**
+ * Similarity of two bags of words, ranging from 0 (no common tokens) to 1 (equal bags).
+ */
+public enum SimilarityMeasure {
+    /**
+     * Size of the intersection divided by the size of the larger bag.
+     */
+    OVERLAP {
+        @Override
+        public double compute(TokenBag first, TokenBag second) {
+            int maxNumOfTokens = Math.max(first.size(), second.size());
+            return maxNumOfTokens == 0 ? 0 : (double) first.intersectionSize(second) / maxNumOfTokens;
+        }
+    },
+    /**
+     * Size of the intersection divided by the size of the union.
+     */
+    JACCARD {
+        @Override
+        public double compute(TokenBag first, TokenBag second) {
+            int intersection = first.intersectionSize(second);
+            int union = first.size() + second.size() - intersection;
+            return union == 0 ? 0 : (double) intersection / union;
+        }
+    },
+    /**
+     * Cosine of the angle between the vectors of token counts.
+     */
+    COSINE {
+        @Override
+        public double compute(TokenBag first, TokenBag second) {
+            double norms = first.norm() * second.norm();
+            return norms == 0 ? 0 : first.dotProduct(second) / norms;
+        }
+    };
+
+    public abstract double compute(TokenBag first, TokenBag second);
+
+    /**
+     * Returns the measure with the given case-insensitive name, falling back to {@link #OVERLAP} for unknown names.
+     */
+    public static SimilarityMeasure fromName(String name) {
+        for (SimilarityMeasure measure : values()) {
+            if (measure.name().equalsIgnoreCase(name)) {
+                return measure;
+            }
+        }
+        return OVERLAP;
+    }
+}
@@ -1,26 +1,34 @@
 package org.jetbrains.research.anticopypaster.utils;
 
+import org.jetbrains.research.anticopypaster.metrics.features.Feature;
+import org.jetbrains.research.anticopypaster.metrics.features.FeaturesColumns;
 import org.jetbrains.research.anticopypaster.metrics.features.FeaturesVector;
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 
 public class SizeMetrics extends Flag{
 
     public SizeMetrics(List<FeaturesVector> featuresVectorList){
-        super(featuresVectorList);
-        calculateAverageSizeMetrics();
+        super();
+        calculateAverageSizeMetrics(featuresVectorList);
     }
 
-    private void calculateAverageSizeMetrics(){
-        ArrayList<Float> sizeMetricsValues = new ArrayList<Float>();
+    /**
+     * Builds the flag from the features of the project methods stored by columns,
+     * reading only the size column.
+     */
+    public SizeMetrics(FeaturesColumns featuresColumns){
+        super();
+        for(int row = 0; row < featuresColumns.size(); row++){
+            metricValues.add(featuresColumns.get(row, Feature.TotalLinesOfCode));
+        }
+        boxPlotCalculationsFromSketch(metricValues);
+    }
 
+    private void calculateAverageSizeMetrics(List<FeaturesVector> featuresVectorList){
         for(FeaturesVector f : featuresVectorList){
-            sizeMetricsValues.add(getSizeMetricFromFV(f));
+            metricValues.add(getSizeMetricFromFV(f));
         }
-
-        Collections.sort(sizeMetricsValues);
-        boxPlotCalculations(sizeMetricsValues);
+        boxPlotCalculationsFromSketch(metricValues);
     }
 
     /**
@@ -29,14 +37,13 @@ public class SizeMetrics extends Flag{
      */
     private float getSizeMetricFromFV(FeaturesVector fv){
         if(fv != null){
-            float[] fvArr = fv.buildArray();
-            lastCalculatedMetric = fvArr[0];
+            lastCalculatedMetric = (float) fv.getFeatureValue(Feature.TotalLinesOfCode);
             return lastCalculatedMetric;
         }
         lastCalculatedMetric = 0;
         return lastCalculatedMetric;
     }
-    
+
     /**
     Required override function from Flag. This just compares the size (M1/M12)
     of the passed in FeaturesVector against the correct quartile value 
@@ -0,0 +1,110 @@
+package org.jetbrains.research.anticopypaster.utils;
+
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An immutable multiset of tokens stored as 64-bit token hashes sorted in ascending order with their counts,
+ * so that two bags are compared by a single allocation-free merge of the arrays.
+ * The hashes are computed from the tokens alone, so no shared table of tokens is needed, and a collision
+ * of two different tokens is unlikely enough not to affect the similarity.
+ */
+public final class TokenBag {
+    private final long[] ids;
+    private final int[] counts;
+    private final int size;
+    private final double norm;
+
+    private TokenBag(long[] ids, int[] counts) {
+        this.ids = ids;
+        this.counts = counts;
+        int size = 0;
+        long squares = 0;
+        for (int count : counts) {
+            size += count;
+            squares += (long) count * count;
+        }
+        this.size = size;
+        this.norm = Math.sqrt(squares);
+    }
+
+    public static TokenBag of(List<String> tokens) {
+        Long2IntOpenHashMap occurrences = new Long2IntOpenHashMap(tokens.size());
+        for (String token : tokens) {
+            occurrences.addTo(hash(token), 1);
+        }
+        long[] ids = occurrences.keySet().toLongArray();
+        Arrays.sort(ids);
+        int[] counts = new int[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            counts[i] = occurrences.get(ids[i]);
+        }
+        return new TokenBag(ids, counts);
+    }
+
+    /**
+     * Returns the 64-bit FNV-1a hash of the token.
+     */
+    private static long hash(String token) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < token.length(); i++) {
+            hash ^= token.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Returns the number of tokens, counting repeated tokens as many times as they occur.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the Euclidean norm of the vector of token counts.
+     */
+    public double norm() {
+        return norm;
+    }
+
+    /**
+     * Returns the size of the multiset intersection, i.e. the sum of the minimal counts of the common tokens.
+     */
+    public int intersectionSize(TokenBag other) {
+        int result = 0;
+        int i = 0;
+        int j = 0;
+        while (i < ids.length && j < other.ids.length) {
+            if (ids[i] < other.ids[j]) {
+                i++;
+            } else if (ids[i] > other.ids[j]) {
+                j++;
+            } else {
+                result += Math.min(counts[i++], other.counts[j++]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the dot product of the vectors of token counts.
+     */
+    public long dotProduct(TokenBag other) {
+        long result = 0;
+        int i = 0;
+        int j = 0;
+        while (i < ids.length && j < other.ids.length) {
+            if (ids[i] < other.ids[j]) {
+                i++;
+            } else if (ids[i] > other.ids[j]) {
+                j++;
+            } else {
+                result += (long) counts[i++] * other.counts[j++];
+            }
+        }
+        return result;
+    }
+}
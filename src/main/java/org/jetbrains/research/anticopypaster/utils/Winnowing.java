@@ -0,0 +1,126 @@
+package org.jetbrains.research.anticopypaster.utils;
+
+import it.unimi.dsi.fastutil.ints.IntIterator;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.ints.IntSet;
+
+/**
+ * Computes MOSS-style fingerprints of a text: the hashes of all k-grams are calculated with a rolling hash,
+ * and the minimal hash of every window of consecutive k-grams is selected.
+ * Any common substring of at least {@link #GUARANTEED_LENGTH} characters is guaranteed to share a fingerprint,
+ * and a text of at least that length contained in another one has all of its fingerprints among the fingerprints
+ * of the other text, since each of its windows is a window of the other text too.
+ * A shorter text has a single fingerprint, the minimum of its fewer k-grams, which the other text only has
+ * if it's also the minimum of a whole window there.
+ */
+public final class Winnowing {
+    /**
+     * Length of a k-gram in characters.
+     */
+    public static final int K = 10;
+    /**
+     * Number of consecutive k-grams from which a single fingerprint is selected.
+     */
+    public static final int WINDOW = 6;
+    /**
+     * Length of the texts that have at least one whole window, for which the guarantees hold.
+     */
+    public static final int GUARANTEED_LENGTH = K + WINDOW - 1;
+
+    private static final int BASE = 31;
+    private static final int BASE_POWER = power(BASE, K - 1);
+
+    private Winnowing() {
+    }
+
+    /**
+     * Returns the fingerprints of the text, which is expected to be stripped of whitespaces.
+     * The result is empty if the text is shorter than {@link #K}.
+     */
+    public static IntSet fingerprints(CharSequence text) {
+        int count = text.length() - K + 1;
+        IntSet result = new IntOpenHashSet(Math.max(count / WINDOW * 2, 4));
+        if (count <= 0) {
+            return result;
+        }
+
+        int[] hashes = new int[count];
+        int hash = 0;
+        for (int i = 0; i < K; i++) {
+            hash = hash * BASE + text.charAt(i);
+        }
+        hashes[0] = mix(hash);
+        for (int i = 1; i < count; i++) {
+            hash = (hash - text.charAt(i - 1) * BASE_POWER) * BASE + text.charAt(i + K - 1);
+            hashes[i] = mix(hash);
+        }
+
+        if (count <= WINDOW) {
+            result.add(min(hashes, 0, count));
+            return result;
+        }
+
+        // Monotonic deque of positions, the head is always the rightmost minimum of the current window
+        int[] deque = new int[count];
+        int head = 0;
+        int tail = 0;
+        for (int i = 0; i < count; i++) {
+            while (tail > head && hashes[deque[tail - 1]] >= hashes[i]) {
+                tail--;
+            }
+            deque[tail++] = i;
+            if (deque[head] <= i - WINDOW) {
+                head++;
+            }
+            if (i >= WINDOW - 1) {
+                result.add(hashes[deque[head]]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the share of the fragment's fingerprints that are present in the fingerprints of the other text.
+     */
+    public static double containment(IntSet fragment, IntSet other) {
+        if (fragment.isEmpty()) {
+            return 0;
+        }
+        int common = 0;
+        IntIterator iterator = fragment.iterator();
+        while (iterator.hasNext()) {
+            if (other.contains(iterator.nextInt())) {
+                common++;
+            }
+        }
+        return (double) common / fragment.size();
+    }
+
+    private static int min(int[] values, int from, int to) {
+        int result = values[from];
+        for (int i = from + 1; i < to; i++) {
+            result = Math.min(result, values[i]);
+        }
+        return result;
+    }
+
+    /**
+     * Spreads the bits of a polynomial hash, so that the selected minimums are not biased towards some characters.
+     */
+    private static int mix(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+
+    private static int power(int base, int exponent) {
+        int result = 1;
+        for (int i = 0; i < exponent; i++) {
+            result *= base;
+        }
+        return result;
+    }
+}
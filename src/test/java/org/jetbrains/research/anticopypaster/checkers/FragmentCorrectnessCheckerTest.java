@@ -1,4 +1,71 @@
 package org.jetbrains.research.anticopypaster.checkers;
 
-public class FragmentCorrectnessCheckerTest {
+import com.intellij.psi.PsiFile;
+import com.intellij.testFramework.fixtures.LightJavaCodeInsightFixtureTestCase;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Test class for the FragmentCorrectnessChecker, checking which fragments are correct sequences of statements
+ * and which variables and identifiers are collected from them.
+ */
+public class FragmentCorrectnessCheckerTest extends LightJavaCodeInsightFixtureTestCase {
+    private PsiFile file;
+    private HashSet<String> variables;
+    private HashMap<String, Integer> identifierCounts;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        file = myFixture.configureByText("A.java", "class A {\n    void f(int a) {\n    }\n}\n");
+        variables = new HashSet<>();
+        identifierCounts = new HashMap<>();
+    }
+
+    public void testBalancedFragment() {
+        assertTrue(isCorrect("int a = 1;\nif (a > 0) {\n    a = values[a];\n}"));
+        assertTrue(isCorrect("String s = \"{(\"; // )\nchar c = ']';"));
+    }
+
+    public void testUnbalancedFragment() {
+        assertFalse(isCorrect("if (a > 0) {\n    b();"));
+        assertFalse(isCorrect("b();\n}"));
+        assertFalse(isCorrect("b(a));"));
+        assertFalse(isCorrect("int x = values[0;"));
+        assertFalse(isCorrect("int x = 1; #"));
+    }
+
+    public void testFragmentWithErrorElement() {
+        // The brackets are balanced, but the fragment can't be parsed as statements
+        assertFalse(isCorrect("int a = ;"));
+        assertFalse(isCorrect("}\n{"));
+    }
+
+    public void testCollectedVariables() {
+        assertTrue(isCorrect("int a = 1;\nint b = a + 1;\nfor (int i = 0; i < b; i++) {\n    String s = \"\" + i;\n}"));
+
+        assertEquals(Set.of("a", "b", "i", "s"), variables);
+    }
+
+    public void testIdentifierCounts() {
+        assertTrue(isCorrect("int a = 1;\nint b = a + 1;\nSystem.out.println(a + b);"));
+
+        assertEquals(Map.of("a", 3, "b", 2, "System", 1, "out", 1, "println", 1), identifierCounts);
+    }
+
+    public void testCountsAreAddedForEachCheck() {
+        // The second check reuses the result of the first one, with other whitespaces
+        assertTrue(isCorrect("int a = 1;\nfoo(a);"));
+        assertTrue(isCorrect("int a  =  1;\n\n    foo(a);"));
+
+        assertEquals(Set.of("a"), variables);
+        assertEquals(Map.of("a", 4, "foo", 2), identifierCounts);
+    }
+
+    private boolean isCorrect(String fragment) {
+        return FragmentCorrectnessChecker.isCorrect(getProject(), file, fragment, variables, identifierCounts);
+    }
 }
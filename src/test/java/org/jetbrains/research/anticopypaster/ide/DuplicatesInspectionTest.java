@@ -1,4 +1,62 @@
 package org.jetbrains.research.anticopypaster.ide;
 
-public class DuplicatesInspectionTest {
+import com.intellij.psi.PsiFile;
+import com.intellij.testFramework.fixtures.LightJavaCodeInsightFixtureTestCase;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Test class for the DuplicatesInspection, searching for a pasted fragment in the methods of its file.
+ */
+public class DuplicatesInspectionTest extends LightJavaCodeInsightFixtureTestCase {
+    private static final int METHODS_COUNT = 200;
+    private static final String FRAGMENT = "int sum = a + b;\n" +
+            "        System.out.println(sum);";
+
+    private final AtomicInteger checkedMethods = new AtomicInteger();
+    // Finds a duplicate in every method, counting the checked ones
+    private final DuplicateDetectionEngine countingEngine = (fragment, method) -> {
+        checkedMethods.incrementAndGet();
+        return new DuplicatesInspection.DuplicateResult(method.getMethod(), 1.0);
+    };
+    private PsiFile file;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        StringBuilder text = new StringBuilder("class A {\n");
+        for (int i = 0; i < METHODS_COUNT; i++) {
+            text.append("    void print").append(i).append("(int a, int b) {\n")
+                    .append("        ").append(FRAGMENT).append("\n")
+                    .append("    }\n");
+        }
+        file = myFixture.configureByText("A.java", text.append("}\n").toString());
+    }
+
+    public void testFindsAllDuplicates() {
+        DuplicatesInspection.InspectionResult result = new DuplicatesInspection().resolve(file, FRAGMENT);
+
+        assertTrue(result.isComplete());
+        assertEquals(METHODS_COUNT, result.getDuplicatesCount());
+    }
+
+    public void testStopsAfterRequiredDuplicates() {
+        DuplicatesInspection.InspectionResult result =
+                new DuplicatesInspection(countingEngine).resolve(file, FRAGMENT, 2);
+
+        // The running chunks may add a few more duplicates before they notice that there are enough
+        assertFalse(result.isComplete());
+        assertTrue(result.isConclusiveFor(2));
+        assertTrue(result.getDuplicatesCount() >= 2);
+        assertTrue(checkedMethods.get() < METHODS_COUNT);
+    }
+
+    public void testCompleteWhenThereAreFewerDuplicates() {
+        DuplicatesInspection.InspectionResult result =
+                new DuplicatesInspection(countingEngine).resolve(file, FRAGMENT, METHODS_COUNT + 1);
+
+        assertTrue(result.isComplete());
+        assertEquals(METHODS_COUNT, result.getDuplicatesCount());
+        assertEquals(METHODS_COUNT, checkedMethods.get());
+    }
 }
@@ -0,0 +1,126 @@
+package org.jetbrains.research.anticopypaster.ide;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.progress.EmptyProgressIndicator;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.testFramework.fixtures.LightJavaCodeInsightFixtureTestCase;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test class for the DuplicatesSearchExecutor, checking that the tasks stop when they are cancelled
+ * and that no work is accepted once the executor is disposed.
+ */
+public class DuplicatesSearchExecutorTest extends LightJavaCodeInsightFixtureTestCase {
+    private static final long TIMEOUT_SECONDS = 10;
+
+    private DuplicatesSearchExecutor executor;
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        executor = new DuplicatesSearchExecutor();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        try {
+            release.countDown();
+            executor.dispose();
+        } finally {
+            super.tearDown();
+        }
+    }
+
+    public void testResult() {
+        Future<Integer> future = executor.submit(() -> 42, null);
+
+        assertEquals(Integer.valueOf(42), executor.await(future));
+    }
+
+    /**
+     * A task runs under the given indicator, so it stops once the indicator is cancelled.
+     */
+    public void testTaskIsCancelledWithIndicator() throws InterruptedException {
+        ProgressIndicator indicator = new EmptyProgressIndicator();
+        CountDownLatch started = new CountDownLatch(1);
+        Future<Boolean> future = executor.submit(() -> {
+            started.countDown();
+            while (true) {
+                ProgressManager.checkCanceled();
+                Thread.onSpinWait();
+            }
+        }, indicator);
+        assertTrue(started.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        indicator.cancel();
+
+        assertThrows(ProcessCanceledException.class, () -> executor.await(future));
+    }
+
+    /**
+     * Waiting for a task stops once the waiting thread is cancelled, even if the task is still running.
+     */
+    public void testAwaitIsCancelledWithCaller() {
+        Future<Boolean> future = executor.submit(this::awaitRelease, null);
+        ProgressIndicator caller = new EmptyProgressIndicator();
+        caller.cancel();
+
+        assertThrows(ProcessCanceledException.class,
+                () -> ProgressManager.getInstance().runProcess(() -> executor.await(future), caller));
+        assertFalse(future.isDone());
+    }
+
+    /**
+     * Waiting for a task stops once the stop condition is met, even if the task is still running.
+     */
+    public void testAwaitStopsOnCondition() {
+        Future<Boolean> future = executor.submit(this::awaitRelease, null);
+
+        assertNull(executor.await(future, () -> true));
+        assertFalse(future.isDone());
+    }
+
+    public void testRejectsTasksAfterDispose() {
+        executor.dispose();
+
+        assertThrows(ProcessCanceledException.class, () -> executor.submit(() -> true, null));
+    }
+
+    /**
+     * A task waiting for the cap of unfinished tasks is rejected once the executor is disposed.
+     */
+    public void testWaitingTaskIsRejectedOnDispose() throws Exception {
+        for (int i = 0; i < DuplicatesSearchExecutor.MAX_IN_FLIGHT_TASKS; i++) {
+            executor.submit(this::awaitRelease, null);
+        }
+        Future<?> submitting = ApplicationManager.getApplication().executeOnPooledThread(
+                () -> executor.submit(() -> true, null));
+        // The submission waits for a free slot until the executor is disposed
+        Thread.sleep(100);
+        assertFalse(submitting.isDone());
+
+        executor.dispose();
+
+        try {
+            submitting.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            fail("The submission should be rejected");
+        } catch (ExecutionException e) {
+            assertInstanceOf(e.getCause(), ProcessCanceledException.class);
+        }
+    }
+
+    private Boolean awaitRelease() {
+        try {
+            return release.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            return false;
+        }
+    }
+}
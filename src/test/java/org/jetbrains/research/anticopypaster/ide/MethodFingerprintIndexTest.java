@@ -0,0 +1,107 @@
+package org.jetbrains.research.anticopypaster.ide;
+
+import com.intellij.openapi.application.ReadAction;
+import com.intellij.testFramework.fixtures.LightJavaCodeInsightFixtureTestCase;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Test class for the MethodFingerprintIndex, searching for pasted fragments in the methods of the project.
+ */
+public class MethodFingerprintIndexTest extends LightJavaCodeInsightFixtureTestCase {
+    private static final String LOOP = "for (int i = 0; i < values.length; i++) {\n" +
+            "    sum += values[i] * weights[i];\n" +
+            "}";
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        myFixture.addFileToProject("Weights.java", "class Weights {\n" +
+                "    int weightedSum(int[] values, int[] weights) {\n" +
+                "        int sum = 0;\n" +
+                "        " + LOOP + "\n" +
+                "        return sum;\n" +
+                "    }\n" +
+                "\n" +
+                "    int max(int[] values) {\n" +
+                "        int max = Integer.MIN_VALUE;\n" +
+                "        for (int value : values) {\n" +
+                "            max = Math.max(max, value);\n" +
+                "        }\n" +
+                "        return max;\n" +
+                "    }\n" +
+                "}\n");
+        myFixture.addFileToProject("Scores.java", "class Scores {\n" +
+                "    int total(int[] values, int[] weights) {\n" +
+                "        int sum = 0;\n" +
+                "        " + LOOP + "\n" +
+                "        return sum;\n" +
+                "    }\n" +
+                "}\n");
+    }
+
+    public void testFindsContainingMethodsInAllFiles() {
+        DuplicatesInspection.InspectionResult result = findDuplicates(LOOP, Integer.MAX_VALUE);
+
+        assertTrue(result.isComplete());
+        assertSameElements(getMethodNames(result), "weightedSum", "total");
+        for (DuplicatesInspection.DuplicateResult duplicate : result.getResults()) {
+            assertEquals(1.0, duplicate.threshold, 0.0);
+        }
+    }
+
+    public void testIgnoresWhitespaces() {
+        DuplicatesInspection.InspectionResult result =
+                findDuplicates(LOOP.replace("\n", " ").replace("    ", ""), Integer.MAX_VALUE);
+
+        assertSameElements(getMethodNames(result), "weightedSum", "total");
+    }
+
+    public void testStopsAfterRequiredDuplicates() {
+        DuplicatesInspection.InspectionResult result = findDuplicates(LOOP, 1);
+
+        // Both methods may reach the required matches on the same fingerprint
+        assertFalse(result.isComplete());
+        assertTrue(result.isConclusiveFor(1));
+    }
+
+    public void testUnrelatedFragment() {
+        DuplicatesInspection.InspectionResult result =
+                findDuplicates("String greeting = \"Hello, \" + name + \"!\";", Integer.MAX_VALUE);
+
+        assertTrue(result.isComplete());
+        assertEquals(0, result.getDuplicatesCount());
+    }
+
+    public void testShortFragmentIsNotSearchable() {
+        assertFalse(MethodFingerprintIndex.isSearchable(PastedFragment.of("i++;")));
+        // Has a fingerprint, but shorter than a whole window, so the containing methods may not have it
+        assertFalse(MethodFingerprintIndex.isSearchable(PastedFragment.of("sum += v[i];")));
+        assertTrue(MethodFingerprintIndex.isSearchable(PastedFragment.of(LOOP)));
+    }
+
+    public void testCommonFragmentIsNotSearched() {
+        StringBuilder text = new StringBuilder("class Common {\n");
+        for (int i = 0; i <= 500; i++) {
+            text.append("    int sum").append(i).append("(int[] values, int[] weights) {\n")
+                    .append("        int sum = 0;\n")
+                    .append("        ").append(LOOP).append("\n")
+                    .append("        return sum;\n")
+                    .append("    }\n");
+        }
+        myFixture.addFileToProject("Common.java", text.append("}\n").toString());
+
+        // Every fingerprint of the loop is in too many methods to search for, so there's no result at all
+        assertNull(findDuplicates(LOOP, Integer.MAX_VALUE));
+    }
+
+    private DuplicatesInspection.InspectionResult findDuplicates(String code, int requiredDuplicates) {
+        return ReadAction.compute(() ->
+                MethodFingerprintIndex.findDuplicates(getProject(), PastedFragment.of(code), requiredDuplicates));
+    }
+
+    private static List<String> getMethodNames(DuplicatesInspection.InspectionResult result) {
+        return result.getResults().stream().map(duplicate -> duplicate.method.getName()).collect(Collectors.toList());
+    }
+}
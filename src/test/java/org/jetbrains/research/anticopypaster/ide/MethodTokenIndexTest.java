@@ -0,0 +1,80 @@
+package org.jetbrains.research.anticopypaster.ide;
+
+import com.intellij.openapi.command.WriteCommandAction;
+import com.intellij.openapi.editor.Document;
+import com.intellij.psi.PsiDocumentManager;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.PsiMethod;
+import com.intellij.testFramework.fixtures.LightJavaCodeInsightFixtureTestCase;
+
+import java.util.List;
+
+/**
+ * Test class for the MethodTokenIndex, checking that the entries are reused until the PSI they were built from
+ * is changed.
+ */
+public class MethodTokenIndexTest extends LightJavaCodeInsightFixtureTestCase {
+    private static final String CODE = "class A {\n" +
+            "    int sum(int a, int b) {\n" +
+            "        return a + b;\n" +
+            "    }\n" +
+            "\n" +
+            "    int product(int a, int b) {\n" +
+            "        return a * b;\n" +
+            "    }\n" +
+            "}\n";
+
+    private PsiFile file;
+    private MethodTokenIndex index;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        file = myFixture.configureByText("A.java", CODE);
+        index = MethodTokenIndex.getInstance(getProject());
+    }
+
+    public void testEntriesAreReused() {
+        List<PsiMethod> methods = index.getMethods(file);
+        assertEquals(2, methods.size());
+        assertSame(methods, index.getMethods(file));
+
+        MethodTokenIndex.MethodEntry entry = index.getEntry(file, methods.get(0));
+        assertSame(entry, index.getEntry(file, methods.get(0)));
+        assertEquals("intsum(inta,intb){returna+b;}", entry.getRawText());
+        assertTrue(entry.hasBody());
+    }
+
+    public void testChangedMethodIsInvalidated() {
+        List<PsiMethod> methods = index.getMethods(file);
+        MethodTokenIndex.MethodEntry sum = index.getEntry(file, methods.get(0));
+        MethodTokenIndex.MethodEntry product = index.getEntry(file, methods.get(1));
+
+        replace("a * b", "a * b * 2");
+
+        methods = index.getMethods(file);
+        assertSame(sum, index.getEntry(file, methods.get(0)));
+        MethodTokenIndex.MethodEntry changedProduct = index.getEntry(file, methods.get(1));
+        assertNotSame(product, changedProduct);
+        assertEquals("intproduct(inta,intb){returna*b*2;}", changedProduct.getRawText());
+    }
+
+    public void testChangedFileIsInvalidated() {
+        List<PsiMethod> methods = index.getMethods(file);
+        MethodTokenIndex.MethodEntry sum = index.getEntry(file, methods.get(0));
+
+        replace("\n}\n", "\n    int zero() {\n        return 0;\n    }\n}\n");
+
+        methods = index.getMethods(file);
+        assertEquals(3, methods.size());
+        assertNotSame(sum, index.getEntry(file, methods.get(0)));
+    }
+
+    private void replace(String oldText, String newText) {
+        Document document = PsiDocumentManager.getInstance(getProject()).getDocument(file);
+        int offset = document.getText().lastIndexOf(oldText);
+        WriteCommandAction.runWriteCommandAction(getProject(), () ->
+                document.replaceString(offset, offset + oldText.length(), newText));
+        PsiDocumentManager.getInstance(getProject()).commitDocument(document);
+    }
+}
@@ -1,10 +1,176 @@
 package org.jetbrains.research.anticopypaster.ide;
-import org.junit.jupiter.api.Test;
-import org.junit.jupiter.api.BeforeEach;
-import static org.junit.Assert.assertTrue;
 
+import com.intellij.openapi.command.WriteCommandAction;
+import com.intellij.openapi.util.registry.Registry;
+import com.intellij.psi.PsiDocumentManager;
+import com.intellij.psi.PsiFile;
+import com.intellij.testFramework.fixtures.LightJavaCodeInsightFixtureTestCase;
 
-public class RefactoringNotificationTaskTest {
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
-}
+/**
+ * Test class for the RefactoringNotificationTask, checking how the pasted fragments are debounced and coalesced,
+ * and when the duplicates found on paste are reused.
+ */
+public class RefactoringNotificationTaskTest extends LightJavaCodeInsightFixtureTestCase {
+    private static final int DEBOUNCE_MS = 200;
+    private static final String FRAGMENT = "int sum = a + b;\nSystem.out.println(sum);";
+
+    private final List<RefactoringEvent> processedEvents = new ArrayList<>();
+    private final ManualScheduler scheduler = new ManualScheduler();
+    // Counts the methods checked by the duplicates search of the task, which finds a duplicate in every method
+    private final AtomicInteger checkedMethods = new AtomicInteger();
+    private RefactoringNotificationTask task;
+    private PsiFile file;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        Registry.get("anticopypaster.notification.debounceMs").setValue(DEBOUNCE_MS, getTestRootDisposable());
+        file = myFixture.configureByText("A.java", "class A {\n" +
+                "    void print(int a, int b) {\n" +
+                "        " + FRAGMENT + "\n" +
+                "    }\n" +
+                "}\n");
+        task = new RefactoringNotificationTask(new DuplicatesInspection((fragment, method) -> {
+            checkedMethods.incrementAndGet();
+            return new DuplicatesInspection.DuplicateResult(method.getMethod(), 1.0);
+        }), processedEvents::add, scheduler, Runnable::run);
+    }
+
+    /**
+     * Two pastes of the same fragment into the same file within the debounce delay are processed only once,
+     * for the latest paste.
+     */
+    public void testSameFragmentInDebounceWindowIsProcessedOnce() {
+        RefactoringEvent first = createEvent(FRAGMENT);
+        RefactoringEvent second = createEvent(FRAGMENT.replace("\n", "\n        "));
+        task.addEvent(first);
+        scheduler.advance(DEBOUNCE_MS / 2);
+        task.addEvent(second);
+        assertEquals(1, task.getQueueDepth());
+
+        // The second paste postpones the processing by a whole debounce delay
+        scheduler.advance(DEBOUNCE_MS - 1);
+        assertEmpty(processedEvents);
+        scheduler.advance(1);
+
+        assertEquals(List.of(second), processedEvents);
+        assertTrue(first.isCancelled());
+        assertFalse(second.isCancelled());
+        assertEquals(1, task.getProcessedEventsCount());
+        assertEquals(0, task.getQueueDepth());
+        assertEquals(DEBOUNCE_MS, task.getAverageLatencyMs(), 0);
+
+        // Nothing is processed again
+        scheduler.advance(DEBOUNCE_MS * 2);
+        assertEquals(1, processedEvents.size());
+    }
+
+    /**
+     * Different fragments pasted into the same file are all processed, in the order of the pastes.
+     */
+    public void testDifferentFragmentsAreProcessedInOrder() {
+        RefactoringEvent first = createEvent(FRAGMENT);
+        RefactoringEvent second = createEvent("int sum = a + b;");
+        task.addEvent(first);
+        task.addEvent(second);
+        assertEquals(2, task.getQueueDepth());
+
+        scheduler.advance(DEBOUNCE_MS);
+
+        assertEquals(List.of(first, second), processedEvents);
+        assertEquals(0, task.getQueueDepth());
+    }
+
+    /**
+     * The duplicates found on paste are reused while the PSI of the file has the same modification stamp,
+     * and searched for again once it's changed.
+     */
+    public void testAnalysisIsReusedUntilFileChanges() {
+        RefactoringEvent event = createEvent(FRAGMENT);
+        DuplicatesInspection.InspectionResult analysis = new DuplicatesInspection.InspectionResult(List.of(
+                new DuplicatesInspection.DuplicateResult(null, 1.0),
+                new DuplicatesInspection.DuplicateResult(null, 1.0)));
+        event.setAnalysis(file.getModificationStamp(), analysis);
+
+        assertSame(analysis, task.findDuplicates(event, file.getModificationStamp()));
+        assertEquals(0, checkedMethods.get());
 
+        WriteCommandAction.runWriteCommandAction(getProject(), () ->
+                myFixture.getEditor().getDocument().insertString(0, "// changed\n"));
+        PsiDocumentManager.getInstance(getProject()).commitAllDocuments();
+        DuplicatesInspection.InspectionResult result = task.findDuplicates(event, file.getModificationStamp());
+
+        assertNotSame(analysis, result);
+        assertEquals(1, checkedMethods.get());
+        assertEquals(1, result.getDuplicatesCount());
+    }
+
+    /**
+     * The duplicates found on paste are not reused if the search stopped before telling whether there are enough.
+     */
+    public void testInconclusiveAnalysisIsNotReused() {
+        RefactoringEvent event = createEvent(FRAGMENT);
+        DuplicatesInspection.InspectionResult analysis = new DuplicatesInspection.InspectionResult(List.of(
+                new DuplicatesInspection.DuplicateResult(null, 1.0)), false);
+        event.setAnalysis(file.getModificationStamp(), analysis);
+
+        assertNotSame(analysis, task.findDuplicates(event, file.getModificationStamp()));
+        assertEquals(1, checkedMethods.get());
+    }
+
+    private RefactoringEvent createEvent(String text) {
+        return new RefactoringEvent(file, null, text, RefactoringNotificationTask.MIN_DUPLICATES_COUNT,
+                getProject(), myFixture.getEditor(), 2);
+    }
+
+    /**
+     * Runs the scheduled tasks once the time is advanced past their delay, on the calling thread.
+     */
+    private static final class ManualScheduler implements RefactoringNotificationTask.Scheduler {
+        private final List<ScheduledTask> scheduledTasks = new ArrayList<>();
+        private long nanoTime = 0;
+
+        @Override
+        public Future<?> schedule(Runnable task, long delayMs) {
+            ScheduledTask scheduledTask = new ScheduledTask(task, nanoTime + TimeUnit.MILLISECONDS.toNanos(delayMs));
+            scheduledTasks.add(scheduledTask);
+            return scheduledTask;
+        }
+
+        @Override
+        public long nanoTime() {
+            return nanoTime;
+        }
+
+        void advance(long delayMs) {
+            nanoTime += TimeUnit.MILLISECONDS.toNanos(delayMs);
+            List<ScheduledTask> dueTasks = new ArrayList<>();
+            for (ScheduledTask scheduledTask : scheduledTasks) {
+                if (scheduledTask.dueAt <= nanoTime) {
+                    dueTasks.add(scheduledTask);
+                }
+            }
+            scheduledTasks.removeAll(dueTasks);
+            dueTasks.sort(Comparator.comparingLong(scheduledTask -> scheduledTask.dueAt));
+            // Cancelled tasks don't run
+            dueTasks.forEach(FutureTask::run);
+        }
+    }
+
+    private static final class ScheduledTask extends FutureTask<Void> {
+        private final long dueAt;
+
+        private ScheduledTask(Runnable task, long dueAt) {
+            super(task, null);
+            this.dueAt = dueAt;
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package org.jetbrains.research.anticopypaster.metrics;
+
+import com.intellij.lang.java.lexer.JavaLexer;
+import com.intellij.lexer.Lexer;
+import com.intellij.openapi.util.TextRange;
+import com.intellij.pom.java.LanguageLevel;
+import com.intellij.psi.PsiCodeBlock;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.PsiFileFactory;
+import com.intellij.psi.PsiIdentifier;
+import com.intellij.psi.PsiMethod;
+import com.intellij.psi.PsiStatement;
+import com.intellij.psi.tree.IElementType;
+import com.intellij.psi.util.PsiTreeUtil;
+import com.intellij.testFramework.fixtures.LightJavaCodeInsightFixtureTestCase;
+import org.jetbrains.research.anticopypaster.metrics.features.Feature;
+import org.jetbrains.research.anticopypaster.metrics.features.FeaturesVector;
+import org.jetbrains.research.anticopypaster.metrics.utils.DepthAnalyzer;
+import org.jetbrains.research.anticopypaster.metrics.utils.KeywordsCounter;
+import org.jetbrains.research.anticopypaster.metrics.utils.MemberSets;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.jetbrains.research.anticopypaster.utils.PsiUtil.getNumberOfLine;
+
+/**
+ * Test class for the MetricCalculator, checking that the features collected in a single walk over the method
+ * are the same as the ones calculated feature by feature from the texts of the method and the fragment.
+ */
+public class MetricCalculatorTest extends LightJavaCodeInsightFixtureTestCase {
+    private PsiFile file;
+    private Collection<PsiMethod> methods;
+
+    @Override
+    protected String getTestDataPath() {
+        return "src/test/resources/testdata";
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        file = myFixture.configureByFile("Calculator.java");
+        methods = PsiTreeUtil.findChildrenOfType(file, PsiMethod.class);
+        assertEquals(6, methods.size());
+    }
+
+    /**
+     * The whole method is the fragment, like for the metrics of the project methods.
+     */
+    public void testWholeMethods() {
+        for (PsiMethod method : methods) {
+            assertSameFeatures(method, method.getTextRange());
+        }
+    }
+
+    /**
+     * The statements of the method are the fragment, like for a fragment pasted into the method.
+     */
+    public void testMethodStatements() {
+        for (PsiMethod method : methods) {
+            assertSameFeatures(method, getStatementsRange(method));
+        }
+    }
+
+    /**
+     * The fragment isn't at its range anymore, so it's lexed separately with the same result.
+     */
+    public void testShiftedRange() {
+        for (PsiMethod method : methods) {
+            TextRange range = getStatementsRange(method);
+            String fragment = range.substring(file.getText());
+            assertSameFeatures(method, fragment, range.shiftRight(1));
+            assertSameFeatures(method, fragment, null);
+        }
+    }
+
+    private void assertSameFeatures(PsiMethod method, TextRange range) {
+        assertSameFeatures(method, range.substring(file.getText()), range);
+    }
+
+    private void assertSameFeatures(PsiMethod method, String fragment, TextRange range) {
+        int beginLine = getNumberOfLine(file, method.getTextRange().getStartOffset());
+        int endLine = getNumberOfLine(file, method.getTextRange().getEndOffset());
+        FeaturesVector expected = calculateFeatureByFeature(method, fragment, beginLine, endLine);
+        FeaturesVector actual = new MetricCalculator(method, fragment, range, beginLine, endLine).getFeaturesVector();
+
+        for (Feature feature : Feature.values()) {
+            assertEquals(method.getName() + ": " + feature.getName(),
+                    expected.getFeatureValue(feature), actual.getFeatureValue(feature), 1e-9);
+        }
+    }
+
+    private static TextRange getStatementsRange(PsiMethod method) {
+        PsiCodeBlock body = method.getBody();
+        assertNotNull(body);
+        PsiStatement[] statements = body.getStatements();
+        return new TextRange(statements[0].getTextRange().getStartOffset(),
+                statements[statements.length - 1].getTextRange().getEndOffset());
+    }
+
+    /**
+     * Calculates the features like the MetricCalculator did before the single walk, each feature group separately.
+     */
+    private FeaturesVector calculateFeatureByFeature(PsiMethod method, String fragment, int beginLine, int endLine) {
+        FeaturesVector featuresVector = new FeaturesVector(78);
+        int linesCount = endLine - beginLine + 1;
+
+        MemberSets memberSets = MemberSets.getMethodsAndFields(file);
+        PsiFile fragmentFile = PsiFileFactory.getInstance(getProject()).createFileFromText(fragment, file);
+        Set<String> identifiers = new HashSet<>();
+        PsiTreeUtil.collectElementsOfType(fragmentFile, PsiIdentifier.class)
+                .forEach(identifier -> identifiers.add(identifier.getText()));
+        int fieldMatches = (int) memberSets.fields.stream().filter(identifiers::contains).count();
+        int methodMatches = (int) memberSets.methods.stream().filter(identifiers::contains).count();
+        featuresVector.setFeature(Feature.TotalConnectivity, fieldMatches + methodMatches);
+        featuresVector.setFeature(Feature.TotalConnectivityPerLine, (double) (fieldMatches + methodMatches) / linesCount);
+        featuresVector.setFeature(Feature.FieldConnectivity, fieldMatches);
+        featuresVector.setFeature(Feature.FieldConnectivityPerLine, (double) fieldMatches / linesCount);
+        featuresVector.setFeature(Feature.MethodConnectivity, methodMatches);
+        featuresVector.setFeature(Feature.MethodConnectivityPerLine, (double) methodMatches / linesCount);
+
+        int[] keywordCounts = new int[KeywordsCounter.KEYWORDS.size()];
+        Lexer lexer = new JavaLexer(LanguageLevel.HIGHEST);
+        lexer.start(fragment);
+        for (IElementType tokenType = lexer.getTokenType(); tokenType != null; tokenType = lexer.getTokenType()) {
+            int index = KeywordsCounter.indexOf(tokenType);
+            if (index >= 0) {
+                keywordCounts[index]++;
+            }
+            lexer.advance();
+        }
+        int id = 16;
+        for (int count : keywordCounts) {
+            featuresVector.setFeature(Feature.fromId(id++), count);
+            featuresVector.setFeature(Feature.fromId(id++), (double) count / linesCount);
+        }
+
+        String methodText = method.getText();
+        int methodArea = DepthAnalyzer.getNestingArea(methodText);
+        int methodLines = countLines(methodText);
+        featuresVector.setFeature(Feature.MethodDeclarationLines, methodLines);
+        featuresVector.setFeature(Feature.MethodDeclarationSymbols, methodText.length());
+        featuresVector.setFeature(Feature.MethodDeclarationSymbolsPerLine, (double) methodText.length() / methodLines);
+        featuresVector.setFeature(Feature.MethodDeclarationArea, methodArea);
+        featuresVector.setFeature(Feature.MethodDeclarationAreaPerLine, (double) methodArea / methodLines);
+
+        int fragmentArea = DepthAnalyzer.getNestingArea(fragment);
+        int fragmentLines = countLines(fragment);
+        featuresVector.setFeature(Feature.TotalLinesOfCode, fragmentLines);
+        featuresVector.setFeature(Feature.TotalSymbols, fragment.length());
+        featuresVector.setFeature(Feature.SymbolsPerLine, (double) fragment.length() / fragmentLines);
+        featuresVector.setFeature(Feature.Area, fragmentArea);
+        featuresVector.setFeature(Feature.AreaPerLine, (double) fragmentArea / fragmentLines);
+        return featuresVector;
+    }
+
+    private static int countLines(String code) {
+        return (int) code.chars().filter(c -> c == '\n').count() + 1;
+    }
+}
@@ -0,0 +1,97 @@
+package org.jetbrains.research.anticopypaster.metrics.features;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThrows;
+
+public class FeaturesColumnsTest {
+
+    @Test
+    public void testColumnsGrow(){
+        FeaturesColumns columns = new FeaturesColumns(3);
+        List<float[]> rows = new ArrayList<>();
+        for(int i = 0; i < 1000; i++){
+            rows.add(new float[]{i, i * 2, i * 3});
+        }
+        columns.addAll(rows.subList(0, 10));
+        for(float[] row : rows.subList(10, rows.size())){
+            columns.add(row);
+        }
+
+        assertEquals(1000, columns.size());
+        for(int i = 0; i < 1000; i++){
+            assertEquals(i, columns.get(i, 0), 0);
+            assertEquals(i * 2, columns.get(i, 1), 0);
+            assertEquals(i * 3, columns.get(i, 2), 0);
+        }
+    }
+
+    @Test
+    public void testShortRowIsPaddedWithZeros(){
+        FeaturesColumns columns = new FeaturesColumns(3);
+        columns.add(new float[]{1});
+
+        assertEquals(1, columns.get(0, 0), 0);
+        assertEquals(0, columns.get(0, 1), 0);
+        assertEquals(0, columns.get(0, 2), 0);
+    }
+
+    @Test
+    public void testRowOutOfBounds(){
+        FeaturesColumns columns = new FeaturesColumns(3);
+        columns.add(new float[]{1, 2, 3});
+
+        assertThrows(IndexOutOfBoundsException.class, () -> columns.get(1, 0));
+    }
+
+    @Test
+    public void testCopyIsSnapshot(){
+        FeaturesColumns columns = new FeaturesColumns(2);
+        columns.add(new float[]{1, 2});
+        FeaturesColumns copy = columns.copy();
+        columns.add(new float[]{3, 4});
+        copy.add(new float[]{5, 6});
+
+        assertEquals(2, copy.getDimension());
+        assertEquals(2, copy.size());
+        assertEquals(1, copy.get(0, 0), 0);
+        assertEquals(2, copy.get(0, 1), 0);
+        assertEquals(5, copy.get(1, 0), 0);
+        assertEquals(3, columns.get(1, 0), 0);
+    }
+
+    @Test
+    public void testVectorsRoundTrip(){
+        FeaturesVector first = new FeaturesVector(Feature.values().length);
+        first.setFeature(Feature.TotalLinesOfCode, 10);
+        first.setFeature(Feature.Area, 2.5);
+        FeaturesVector second = new FeaturesVector(Feature.values().length);
+        second.setFeature(Feature.KeywordForTotalCount, 3);
+
+        FeaturesColumns columns = FeaturesColumns.of(Arrays.asList(first, second));
+        List<FeaturesVector> vectors = columns.asVectors();
+
+        assertEquals(2, vectors.size());
+        assertArrayEquals(first.buildArray(), vectors.get(0).buildArray(), 0);
+        assertArrayEquals(second.buildArray(), vectors.get(1).buildArray(), 0);
+        // The view is taken back without copying
+        assertSame(columns, FeaturesColumns.of(vectors));
+    }
+
+    @Test
+    public void testNullVectors(){
+        FeaturesColumns columns = FeaturesColumns.of(Arrays.asList(null, null));
+
+        assertEquals(Feature.values().length, columns.getDimension());
+        assertEquals(2, columns.size());
+        assertEquals(0, columns.get(1, Feature.TotalLinesOfCode), 0);
+        assertEquals(0, columns.get(1, Feature.Area), 0);
+    }
+}
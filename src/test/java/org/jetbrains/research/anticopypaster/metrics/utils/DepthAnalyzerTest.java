@@ -0,0 +1,160 @@
+package org.jetbrains.research.anticopypaster.metrics.utils;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class DepthAnalyzerTest {
+
+    @Test
+    public void testNesting(){
+        String code = "if (a) {\n" +
+                "    for (;;) x();\n" +
+                "    while (b) {\n" +
+                "        y();\n" +
+                "    } z();\n" +
+                "}";
+
+        assertArrayEquals(new int[]{0, 1, 1, 2, 1, 0}, DepthAnalyzer.getNestingDepths(code));
+        assertEquals(5, DepthAnalyzer.getNestingArea(code));
+        assertEquals(2, DepthAnalyzer.getNestingDepth(code));
+    }
+
+    @Test
+    public void testBracesInStringsAndChars(){
+        assertDepths(new int[]{0, 1, 1, 1, 0}, "{\n" +
+                "s = \"{\";\n" +
+                "c = '{';\n" +
+                "s = \"\" + \"}\" + '}';\n" +
+                "}");
+    }
+
+    @Test
+    public void testEscapes(){
+        assertDepths(new int[]{0, 1, 1, 0}, "{\n" +
+                "s = \"\\\"{\" + \"\\\\\" + '\\'' + '}';\n" +
+                "c = '\\\\'; d = '{';\n" +
+                "}");
+    }
+
+    @Test
+    public void testBracesInComments(){
+        assertDepths(new int[]{0, 1, 1, 1, 1, 1, 0}, "{\n" +
+                "// {\n" +
+                "x(); // }\n" +
+                "/* } { */ y();\n" +
+                "/* multi\n" +
+                " } */\n" +
+                "}");
+    }
+
+    @Test
+    public void testBracesInTextBlocks(){
+        assertDepths(new int[]{0, 1, 1, 1, 1, 0}, "{\n" +
+                "s = \"\"\"\n" +
+                "    }\n" +
+                "    \\\"\"\"{\n" +
+                "    \"\"\";\n" +
+                "}");
+    }
+
+    @Test
+    public void testUnterminatedStringEndsWithLine(){
+        assertDepths(new int[]{0, 1, 0}, "{\n" +
+                "s = \"{\n" +
+                "}");
+    }
+
+    @Test
+    public void testTrailingEmptyLines(){
+        assertArrayEquals(new int[]{0, 1, 0}, DepthAnalyzer.getNestingDepths("{\nx();\n}\n\n\n"));
+        // Empty lines in the middle are counted, only the trailing ones are not
+        assertDepths(new int[]{0, 1, 1, 1, 0}, "{\n\n\nx();\n}\n\n");
+        assertArrayEquals(new int[]{0}, DepthAnalyzer.getNestingDepths(""));
+        assertArrayEquals(new int[0], DepthAnalyzer.getNestingDepths("\n\n"));
+    }
+
+    /**
+     * Without strings and comments, the depths are the same as the ones of the former implementation,
+     * which split the code into lines.
+     */
+    @Test
+    public void testSameAsLineSplitting(){
+        Random random = new Random(42);
+        char[] alphabet = {'{', '}', '\n', 'a', ' '};
+        for(int i = 0; i < 10000; i++){
+            StringBuilder code = new StringBuilder();
+            int length = random.nextInt(30);
+            for(int j = 0; j < length; j++){
+                code.append(alphabet[random.nextInt(alphabet.length)]);
+            }
+            String text = code.toString();
+            int[] expected = getNestingDepthsBySplitting(text);
+
+            assertArrayEquals(text, expected, DepthAnalyzer.getNestingDepths(text));
+            assertEquals(text, Arrays.stream(expected).sum(), DepthAnalyzer.getNestingArea(text));
+            assertEquals(text, Arrays.stream(expected).max().orElse(0), DepthAnalyzer.getNestingDepth(text));
+        }
+    }
+
+    /**
+     * Feeding the code in parts gives the same results as for the whole code.
+     */
+    @Test
+    public void testTrackerInParts(){
+        Random random = new Random(42);
+        String code = "void f() {\n" +
+                "    s = \"}\"; /* { */\n" +
+                "\n" +
+                "    if (a) { // {\n" +
+                "        b();\n" +
+                "    }\n" +
+                "}\n";
+        for(int i = 0; i < 100; i++){
+            DepthAnalyzer.Tracker tracker = new DepthAnalyzer.Tracker();
+            for(int start = 0; start < code.length(); ){
+                int end = Math.min(code.length(), start + 1 + random.nextInt(5));
+                tracker.accept(code, start, end);
+                start = end;
+            }
+
+            assertEquals(DepthAnalyzer.getNestingArea(code), tracker.getArea());
+            assertEquals(DepthAnalyzer.getNestingDepth(code), tracker.getDepth());
+            assertEquals(8, tracker.getLineCount());
+        }
+    }
+
+    private static void assertDepths(int[] expected, String code){
+        assertArrayEquals(expected, DepthAnalyzer.getNestingDepths(code));
+        assertEquals(Arrays.stream(expected).sum(), DepthAnalyzer.getNestingArea(code));
+        assertEquals(Arrays.stream(expected).max().orElse(0), DepthAnalyzer.getNestingDepth(code));
+    }
+
+    /**
+     * The former implementation, which split the code into lines and counted all braces.
+     */
+    private static int[] getNestingDepthsBySplitting(String code){
+        String[] lines = code.split("\n");
+        int[] depthInLine = new int[lines.length];
+        int currentDepth = 0;
+        for(int i = 0; i < lines.length; i++){
+            for(int j = 0; j < lines[i].length(); j++){
+                if(lines[i].charAt(j) == '{')
+                    break;
+                if(lines[i].charAt(j) == '}'){
+                    currentDepth--;
+                }
+            }
+            currentDepth = Math.max(currentDepth, 0);
+            depthInLine[i] = currentDepth;
+            for(int j = 0; j < lines[i].length(); j++){
+                if(lines[i].charAt(j) == '{') currentDepth++;
+            }
+        }
+        return depthInLine;
+    }
+}
@@ -0,0 +1,67 @@
+package org.jetbrains.research.anticopypaster.metrics.utils;
+
+import com.intellij.psi.JavaTokenType;
+import com.intellij.psi.PsiMethod;
+import com.intellij.psi.util.PsiTreeUtil;
+import com.intellij.testFramework.fixtures.LightJavaCodeInsightFixtureTestCase;
+import org.jetbrains.research.anticopypaster.metrics.MetricCalculator;
+import org.jetbrains.research.anticopypaster.metrics.features.Feature;
+import org.jetbrains.research.anticopypaster.metrics.features.FeaturesVector;
+
+/**
+ * Test class for the KeywordsCounter, checking that only the keyword tokens of the fragment are counted.
+ */
+public class KeywordsCounterTest extends LightJavaCodeInsightFixtureTestCase {
+    private static final String FRAGMENT = "String text = \"int for new\"; /* if return */\n" +
+            "        for (int i = 0; i < count; i++) {\n" +
+            "            // while int\n" +
+            "            System.out.print(text);\n" +
+            "        }";
+
+    private PsiMethod method;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        method = PsiTreeUtil.findChildOfType(myFixture.configureByText("A.java", "class A {\n" +
+                "    void print(int count) {\n" +
+                "        " + FRAGMENT + "\n" +
+                "        return;\n" +
+                "    }\n" +
+                "}\n"), PsiMethod.class);
+    }
+
+    public void testIndexOf() {
+        assertEquals(0, KeywordsCounter.indexOf(JavaTokenType.CONTINUE_KEYWORD));
+        assertEquals(KeywordsCounter.KEYWORDS.size() - 1, KeywordsCounter.indexOf(JavaTokenType.WHILE_KEYWORD));
+        assertEquals(-1, KeywordsCounter.indexOf(JavaTokenType.IDENTIFIER));
+        assertEquals(-1, KeywordsCounter.indexOf(JavaTokenType.STRING_LITERAL));
+        assertEquals(31, KeywordsCounter.KEYWORDS.size());
+    }
+
+    /**
+     * The fragment is found in the method, so its keywords are counted while visiting the method.
+     */
+    public void testFragmentInMethod() {
+        assertKeywordCounts(new MetricCalculator(method, FRAGMENT, 2, 6).getFeaturesVector());
+    }
+
+    /**
+     * The reformatted fragment isn't found in the method, so its keywords are counted by lexing it separately.
+     */
+    public void testReformattedFragment() {
+        String fragment = FRAGMENT.replace("\n        ", "\n");
+        assertKeywordCounts(new MetricCalculator(method, fragment, 2, 6).getFeaturesVector());
+    }
+
+    private static void assertKeywordCounts(FeaturesVector featuresVector) {
+        // "int" isn't counted inside "print", nor the keywords inside the string and the comments
+        assertEquals(1.0, featuresVector.getFeatureValue(Feature.KeywordIntTotalCount), 0.0);
+        assertEquals(1.0, featuresVector.getFeatureValue(Feature.KeywordForTotalCount), 0.0);
+        assertEquals(0.0, featuresVector.getFeatureValue(Feature.KeywordNewTotalCount), 0.0);
+        assertEquals(0.0, featuresVector.getFeatureValue(Feature.KeywordIfTotalCount), 0.0);
+        assertEquals(0.0, featuresVector.getFeatureValue(Feature.KeywordWhileTotalCount), 0.0);
+        // Only the keywords of the fragment are counted, not the ones of the rest of the method
+        assertEquals(0.0, featuresVector.getFeatureValue(Feature.KeywordReturnTotalCount), 0.0);
+    }
+}
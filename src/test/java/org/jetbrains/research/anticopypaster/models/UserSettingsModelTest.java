@@ -4,6 +4,7 @@ import com.intellij.testFramework.fixtures.LightJavaCodeInsightFixtureTestCase;
 import org.junit.Before;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.BeforeEach;
+import org.jetbrains.research.anticopypaster.metrics.features.Feature;
 import org.jetbrains.research.anticopypaster.metrics.features.FeaturesVector;
 import org.jetbrains.research.anticopypaster.utils.MetricsGatherer;
 import org.jetbrains.research.anticopypaster.utils.KeywordsMetrics;
@@ -37,7 +38,7 @@ public class UserSettingsModelTest extends LightJavaCodeInsightFixtureTestCase {
     }
 
     /**
-    Inner class to mock a FeaturesVector, should only need buildArray() for this
+    Inner class to mock a FeaturesVector, should only need getFeatureValue() for this
      */
     public static class FeaturesVectorMock {
         @Mock
@@ -50,8 +51,8 @@ public class UserSettingsModelTest extends LightJavaCodeInsightFixtureTestCase {
             this.metricsArray = metricsArray;
             
             // mock methods for the FeaturesVector class
-            when(mockFeaturesVector.buildArray())
-                .thenReturn(this.metricsArray);
+            when(mockFeaturesVector.getFeatureValue(any(Feature.class)))
+                .thenAnswer(invocation -> (double) this.metricsArray[invocation.<Feature>getArgument(0).getId()]);
             
         }
         
@@ -1,5 +1,6 @@
 package org.jetbrains.research.anticopypaster.utils;
 
+import org.jetbrains.research.anticopypaster.metrics.features.Feature;
 import org.jetbrains.research.anticopypaster.metrics.features.FeaturesVector;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -32,8 +33,8 @@ public class ComplexityMetricsTest {
             this.metricsArray = metricsArray;
             
             // mock methods for the FeaturesVector class
-            when(mockFeaturesVector.buildArray())
-                .thenReturn(this.metricsArray);
+            when(mockFeaturesVector.getFeatureValue(any(Feature.class)))
+                .thenAnswer(invocation -> (double) this.metricsArray[invocation.<Feature>getArgument(0).getId()]);
             
         }
         
@@ -23,7 +23,7 @@ public class FlagTest {
     class TestingFlag extends Flag{
 
         public TestingFlag(List<FeaturesVector> featuresVectorList){
-            super(featuresVectorList);
+            super();
         }
 
         @Override 
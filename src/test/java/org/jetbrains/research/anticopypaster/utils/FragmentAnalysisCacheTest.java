@@ -0,0 +1,52 @@
+package org.jetbrains.research.anticopypaster.utils;
+
+import com.intellij.openapi.util.Key;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class FragmentAnalysisCacheTest {
+    private static final Key<String> DATA = Key.create("anticopypaster.test.data");
+
+    @Test
+    public void testNormalize(){
+        assertEquals("int a = 1;\nfoo(a);", FragmentAnalysisCache.normalize("  int  a =\t1;\r\n\n   foo(a);\n"));
+        assertEquals("", FragmentAnalysisCache.normalize(" \n\t"));
+    }
+
+    @Test
+    public void testWhitespacesShareEntry(){
+        FragmentAnalysisCache cache = new FragmentAnalysisCache(10, 1000);
+        FragmentAnalysisCache.Entry entry = cache.get("int a = 1;\nfoo(a);");
+
+        assertSame(entry, cache.get("  int a  =  1;\n\n    foo(a);"));
+        assertNotSame(entry, cache.get("int a = 1; foo(a);"));
+        assertEquals("data", entry.getOrCompute(DATA, () -> "data"));
+        assertEquals("data", entry.getOrCompute(DATA, () -> "other data"));
+    }
+
+    @Test
+    public void testEntriesAreBounded(){
+        FragmentAnalysisCache cache = new FragmentAnalysisCache(2, 1000);
+        FragmentAnalysisCache.Entry first = cache.get("a();");
+        cache.get("b();");
+        cache.get("a();");
+        cache.get("c();");
+
+        assertEquals(2, cache.size());
+        // The least recently used entry is evicted
+        assertSame(first, cache.get("a();"));
+    }
+
+    @Test
+    public void testWeightIsBounded(){
+        FragmentAnalysisCache cache = new FragmentAnalysisCache(10, 8);
+        cache.get("a();");
+        cache.get("b();");
+        cache.get("c();");
+
+        assertEquals(2, cache.size());
+    }
+}
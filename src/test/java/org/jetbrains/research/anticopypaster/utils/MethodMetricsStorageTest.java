@@ -0,0 +1,117 @@
+package org.jetbrains.research.anticopypaster.utils;
+
+import com.intellij.openapi.vfs.VirtualFile;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.*;
+
+public class MethodMetricsStorageTest {
+    private static final List<float[]> METRICS = List.of(new float[]{1, 2.5f, 3}, new float[]{4});
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void testRoundTrip(){
+        VirtualFile first = mockFile("/src/A.java", 100, 20);
+        VirtualFile second = mockFile("/src/B.java", 200, 40);
+        save(first, METRICS, second, List.of());
+
+        MethodMetricsStorage storage = new MethodMetricsStorage(getPath());
+        List<float[]> metrics = storage.take(first);
+        assertEquals(METRICS.size(), metrics.size());
+        for(int i = 0; i < METRICS.size(); i++){
+            assertArrayEquals(METRICS.get(i), metrics.get(i), 0);
+        }
+        assertTrue(storage.take(second).isEmpty());
+        // The taken metrics are forgotten, they belong to the index now
+        assertNull(storage.take(first));
+        assertFalse(storage.release());
+    }
+
+    @Test
+    public void testChangedTimeStampMisses(){
+        save(mockFile("/src/A.java", 100, 20), METRICS, mockFile("/src/B.java", 200, 40), METRICS);
+
+        MethodMetricsStorage storage = new MethodMetricsStorage(getPath());
+        assertNull(storage.take(mockFile("/src/A.java", 101, 20)));
+        assertNull(storage.take(mockFile("/src/A.java", 100, 20)));
+        // The metrics of B were not taken, so the saved ones are outdated
+        assertTrue(storage.release());
+        assertNull(storage.take(mockFile("/src/B.java", 200, 40)));
+    }
+
+    @Test
+    public void testChangedLengthMisses(){
+        save(mockFile("/src/A.java", 100, 20), METRICS, mockFile("/src/B.java", 200, 40), METRICS);
+
+        MethodMetricsStorage storage = new MethodMetricsStorage(getPath());
+        assertNull(storage.take(mockFile("/src/A.java", 100, 21)));
+        assertEquals(METRICS.size(), storage.take(mockFile("/src/B.java", 200, 40)).size());
+    }
+
+    @Test
+    public void testVersionMismatchDiscardsFile() throws IOException {
+        Files.createDirectories(getPath().getParent());
+        try(DataOutputStream out = new DataOutputStream(Files.newOutputStream(getPath()))){
+            out.writeInt(MethodMetricsStorage.VERSION + 1);
+            out.writeInt(1);
+            out.writeUTF("/src/A.java");
+            out.writeLong(100);
+            out.writeLong(20);
+            out.writeInt(1);
+            out.writeShort(1);
+            out.writeFloat(1);
+        }
+
+        MethodMetricsStorage storage = new MethodMetricsStorage(getPath());
+        assertNull(storage.take(mockFile("/src/A.java", 100, 20)));
+        assertFalse(storage.release());
+    }
+
+    @Test
+    public void testTruncatedFileIsDiscarded() throws IOException {
+        save(mockFile("/src/A.java", 100, 20), METRICS, mockFile("/src/B.java", 200, 40), METRICS);
+        byte[] content = Files.readAllBytes(getPath());
+        Files.write(getPath(), Arrays.copyOf(content, content.length - 1));
+
+        MethodMetricsStorage storage = new MethodMetricsStorage(getPath());
+        assertNull(storage.take(mockFile("/src/A.java", 100, 20)));
+        assertFalse(storage.release());
+    }
+
+    private Path getPath(){
+        return directory.resolve("anticopypaster").resolve("method-metrics.bin");
+    }
+
+    private void save(VirtualFile first, List<float[]> firstMetrics, VirtualFile second, List<float[]> secondMetrics){
+        Map<String, MethodMetricsStorage.StoredFile> storedFiles = new HashMap<>();
+        storedFiles.put(first.getPath(), new MethodMetricsStorage.StoredFile(first, firstMetrics));
+        storedFiles.put(second.getPath(), new MethodMetricsStorage.StoredFile(second, secondMetrics));
+        new MethodMetricsStorage(getPath()).save(storedFiles);
+    }
+
+    private static VirtualFile mockFile(String path, long timeStamp, long length){
+        VirtualFile file = mock(VirtualFile.class);
+        when(file.getPath()).thenReturn(path);
+        when(file.getTimeStamp()).thenReturn(timeStamp);
+        when(file.getLength()).thenReturn(length);
+        return file;
+    }
+}
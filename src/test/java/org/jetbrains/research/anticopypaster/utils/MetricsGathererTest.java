@@ -1,9 +1,23 @@
 package org.jetbrains.research.anticopypaster.utils;
 
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.command.WriteCommandAction;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.progress.EmptyProgressIndicator;
+import com.intellij.psi.PsiDocumentManager;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.PsiManager;
 import com.intellij.testFramework.fixtures.*;
 import org.jetbrains.research.anticopypaster.metrics.features.FeaturesVector;
 import org.junit.jupiter.api.*;
 
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
 /**
  * Test class for the MetricsGatherer. Extends the LightJavaCodeInsightFixtureTestCase,
  * which is a class that was written for the express purpose of testing IntelliJ
@@ -11,6 +25,8 @@ import org.junit.jupiter.api.*;
  * between tests.
  */
 public class MetricsGathererTest extends LightJavaCodeInsightFixtureTestCase {
+    private static final long TIMEOUT_SECONDS = 10;
+
     // Boolean to ensure the testdata is only added once across the multiple tests
     private boolean addedTestClass = false;
 
@@ -72,4 +88,99 @@ public class MetricsGathererTest extends LightJavaCodeInsightFixtureTestCase {
             Assertions.assertNotEquals(1, arr[0]);
         }
     }
+
+    /**
+     * Test to ensure that a change of a single method doesn't make the metrics
+     * outdated, while the changed file is gathered again on the next gathering.
+     */
+    public void testMetricsNotOutdatedAfterSmallChange() {
+        MetricsGatherer metricsGatherer = new MetricsGatherer();
+        PsiFile file = PsiManager.getInstance(getProject()).findFile(myFixture.findFileInTempDir("Calculator.java"));
+        Document document = PsiDocumentManager.getInstance(getProject()).getDocument(file);
+        int offset = document.getText().lastIndexOf('}');
+        WriteCommandAction.runWriteCommandAction(getProject(), () ->
+                document.insertString(offset, "\n    int zero() {\n        return 0;\n    }\n"));
+        PsiDocumentManager.getInstance(getProject()).commitDocument(document);
+
+        Assertions.assertFalse(metricsGatherer.isOutdated());
+        Assertions.assertEquals(7, new MetricsGatherer().getMethodsMetrics().size());
+    }
+
+    /**
+     * Test to ensure that the metrics gathered so far by the warm-up are taken
+     * while it is running, once there are enough of them, and that such metrics
+     * are outdated from the start.
+     */
+    public void testPartialMetricsDuringWarmUp() {
+        StringBuilder text = new StringBuilder("public class Many {\n");
+        for (int i = 0; i < 120; i++) {
+            text.append("    int m").append(i).append("(int a) {\n        return a + ").append(i).append(";\n    }\n");
+        }
+        myFixture.addFileToProject("Many.java", text.append("}\n").toString());
+        MethodMetricsIndex index = MethodMetricsIndex.getInstance(getProject());
+        AtomicBoolean warmingUp = new AtomicBoolean();
+        AtomicInteger partialCount = new AtomicInteger();
+        AtomicReference<MetricsGatherer> partialGatherer = new AtomicReference<>();
+
+        // Gathers the metrics once the warm-up has processed every file, but hasn't finished yet
+        index.warmUp(new EmptyProgressIndicator() {
+            @Override
+            public void setFraction(double fraction) {
+                if (fraction >= 1) {
+                    warmingUp.set(index.isWarmingUp());
+                    partialCount.set(index.getPartialMethodsMetrics().size());
+                    partialGatherer.set(new MetricsGatherer(getProject(), true));
+                }
+            }
+        });
+
+        Assertions.assertTrue(warmingUp.get());
+        Assertions.assertTrue(partialCount.get() >= 126);
+        Assertions.assertEquals(partialCount.get(), partialGatherer.get().getMethodsMetrics().size());
+        Assertions.assertTrue(partialGatherer.get().isOutdated());
+        MetricsGatherer metricsGatherer = new MetricsGatherer(getProject(), true);
+        Assertions.assertEquals(126, metricsGatherer.getMethodsMetrics().size());
+        Assertions.assertFalse(metricsGatherer.isOutdated());
+    }
+
+    /**
+     * Test to ensure that a gatherer started during the warm-up waits for it
+     * instead of gathering the same files again, since too few methods were
+     * gathered so far for the partial metrics.
+     */
+    public void testWaitsForWarmUp() throws Exception {
+        MethodMetricsIndex index = MethodMetricsIndex.getInstance(getProject());
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Future<?> warmUp = ApplicationManager.getApplication().executeOnPooledThread(() ->
+                index.warmUp(new EmptyProgressIndicator() {
+                    @Override
+                    public void setFraction(double fraction) {
+                        blocked.countDown();
+                        try {
+                            release.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                }));
+        try {
+            Assertions.assertTrue(blocked.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+            Future<MetricsGatherer> gathering = ApplicationManager.getApplication().executeOnPooledThread(() ->
+                    new MetricsGatherer(getProject(), true));
+            // Gathering the files itself would finish while the warm-up is blocked
+            Thread.sleep(100);
+            Assertions.assertFalse(gathering.isDone());
+
+            release.countDown();
+
+            MetricsGatherer metricsGatherer = gathering.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            Assertions.assertFalse(index.isWarmingUp());
+            Assertions.assertEquals(6, metricsGatherer.getMethodsMetrics().size());
+            Assertions.assertFalse(metricsGatherer.isOutdated());
+        } finally {
+            release.countDown();
+            warmUp.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        }
+    }
 }
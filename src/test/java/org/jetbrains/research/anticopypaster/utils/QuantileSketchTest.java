@@ -0,0 +1,75 @@
+package org.jetbrains.research.anticopypaster.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.Assert.assertEquals;
+
+public class QuantileSketchTest {
+
+    @Test
+    public void testValuesAreSorted(){
+        QuantileSketch sketch = new QuantileSketch();
+        sketch.add(3);
+        sketch.add(1);
+        sketch.add(2);
+        sketch.add(1);
+
+        assertEquals(4, sketch.size());
+        assertEquals(1, sketch.valueAt(0), 0);
+        assertEquals(1, sketch.valueAt(1), 0);
+        assertEquals(2, sketch.valueAt(2), 0);
+        assertEquals(3, sketch.valueAt(3), 0);
+    }
+
+    @Test
+    public void testRemove(){
+        QuantileSketch sketch = new QuantileSketch();
+        sketch.add(1);
+        sketch.add(2);
+        sketch.add(2);
+        sketch.remove(2);
+        sketch.remove(1);
+
+        assertEquals(1, sketch.size());
+        assertEquals(2, sketch.valueAt(0), 0);
+    }
+
+    @Test
+    public void testMatchesSortedList(){
+        Random random = new Random(42);
+        QuantileSketch sketch = new QuantileSketch();
+        List<Float> values = new ArrayList<>();
+        for(int i = 0; i < 1000; i++){
+            float value = random.nextInt(100) / 4f;
+            sketch.add(value);
+            values.add(value);
+        }
+        for(int i = 0; i < 300; i++){
+            float value = values.remove(random.nextInt(values.size()));
+            sketch.remove(value);
+        }
+        Collections.sort(values);
+
+        assertEquals(values.size(), sketch.size());
+        for(int i = 0; i < values.size(); i++){
+            assertEquals(values.get(i), sketch.valueAt(i), 0);
+        }
+    }
+
+    @Test
+    public void testDistinctValuesAreBounded(){
+        QuantileSketch sketch = new QuantileSketch();
+        int count = QuantileSketch.MAX_DISTINCT_VALUES * 2;
+        for(int i = 0; i < count; i++){
+            sketch.add(i);
+        }
+
+        assertEquals(count, sketch.size());
+        // Merged values stay close to the exact ones
+        assertEquals(count / 2f, sketch.valueAt(count / 2), 2);
+    }
+}
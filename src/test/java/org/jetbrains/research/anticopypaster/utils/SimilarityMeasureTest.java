@@ -0,0 +1,53 @@
+package org.jetbrains.research.anticopypaster.utils;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class SimilarityMeasureTest {
+    // The bags share one "b" and one "c", the intersection has 2 tokens and the union has 6
+    private final TokenBag first = TokenBag.of(List.of("a", "b", "b", "c"));
+    private final TokenBag second = TokenBag.of(List.of("b", "c", "c", "d"));
+    private final TokenBag empty = TokenBag.of(List.of());
+
+    @Test
+    public void testOverlap(){
+        assertEquals(0.5, SimilarityMeasure.OVERLAP.compute(first, second), 1e-9);
+        assertEquals(1, SimilarityMeasure.OVERLAP.compute(first, first), 1e-9);
+        // Divided by the size of the larger bag
+        assertEquals(0.25, SimilarityMeasure.OVERLAP.compute(TokenBag.of(List.of("a")), first), 1e-9);
+    }
+
+    @Test
+    public void testJaccard(){
+        assertEquals(1.0 / 3, SimilarityMeasure.JACCARD.compute(first, second), 1e-9);
+        assertEquals(1, SimilarityMeasure.JACCARD.compute(first, first), 1e-9);
+    }
+
+    @Test
+    public void testCosine(){
+        // The dot product is 4 and both norms are sqrt(6)
+        assertEquals(4.0 / 6, SimilarityMeasure.COSINE.compute(first, second), 1e-9);
+        assertEquals(1, SimilarityMeasure.COSINE.compute(first, first), 1e-9);
+    }
+
+    @Test
+    public void testDisjointAndEmptyBags(){
+        TokenBag other = TokenBag.of(List.of("x", "y"));
+        for (SimilarityMeasure measure : SimilarityMeasure.values()) {
+            assertEquals(measure.name(), 0, measure.compute(first, other), 0);
+            assertEquals(measure.name(), 0, measure.compute(first, empty), 0);
+            assertEquals(measure.name(), 0, measure.compute(empty, empty), 0);
+        }
+    }
+
+    @Test
+    public void testFromName(){
+        assertSame(SimilarityMeasure.JACCARD, SimilarityMeasure.fromName("jaccard"));
+        assertSame(SimilarityMeasure.COSINE, SimilarityMeasure.fromName("Cosine"));
+        assertSame(SimilarityMeasure.OVERLAP, SimilarityMeasure.fromName("unknown"));
+    }
+}
@@ -0,0 +1,60 @@
+package org.jetbrains.research.anticopypaster.utils;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class TokenBagTest {
+
+    @Test
+    public void testSizeAndNorm(){
+        TokenBag bag = TokenBag.of(List.of("a", "b", "b", "c"));
+
+        assertEquals(4, bag.size());
+        // The counts are 1, 2 and 1
+        assertEquals(Math.sqrt(6), bag.norm(), 1e-9);
+    }
+
+    @Test
+    public void testEmptyBag(){
+        TokenBag empty = TokenBag.of(List.of());
+        TokenBag bag = TokenBag.of(List.of("a"));
+
+        assertEquals(0, empty.size());
+        assertEquals(0, empty.norm(), 0);
+        assertEquals(0, empty.intersectionSize(bag));
+        assertEquals(0, bag.dotProduct(empty));
+    }
+
+    @Test
+    public void testIntersectionSize(){
+        TokenBag first = TokenBag.of(List.of("a", "b", "b", "c"));
+        TokenBag second = TokenBag.of(List.of("b", "c", "c", "d"));
+
+        // min(2, 1) for "b" and min(1, 2) for "c"
+        assertEquals(2, first.intersectionSize(second));
+        assertEquals(2, second.intersectionSize(first));
+        assertEquals(4, first.intersectionSize(first));
+    }
+
+    @Test
+    public void testDotProduct(){
+        TokenBag first = TokenBag.of(List.of("a", "b", "b", "c"));
+        TokenBag second = TokenBag.of(List.of("b", "c", "c", "d"));
+
+        // 2 * 1 for "b" and 1 * 2 for "c"
+        assertEquals(4, first.dotProduct(second));
+        assertEquals(6, first.dotProduct(first));
+    }
+
+    @Test
+    public void testOrderDoesNotMatter(){
+        TokenBag first = TokenBag.of(List.of("x", "y", "z", "y"));
+        TokenBag second = TokenBag.of(List.of("y", "y", "z", "x"));
+
+        assertEquals(4, first.intersectionSize(second));
+        assertEquals(first.dotProduct(first), first.dotProduct(second));
+    }
+}
@@ -0,0 +1,90 @@
+package org.jetbrains.research.anticopypaster.utils;
+
+import java.util.Random;
+
+import it.unimi.dsi.fastutil.ints.IntSet;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class WinnowingTest {
+
+    @Test
+    public void testFragmentShorterThanK(){
+        IntSet fingerprints = Winnowing.fingerprints("a+b;");
+
+        assertTrue(fingerprints.isEmpty());
+        assertEquals(0, Winnowing.containment(fingerprints, Winnowing.fingerprints("returna+b;")), 0);
+    }
+
+    @Test
+    public void testFragmentOfLengthK(){
+        assertEquals(1, Winnowing.fingerprints("returna+b;").size());
+    }
+
+    @Test
+    public void testIdenticalTexts(){
+        String text = "intsum=0;for(inti=0;i<n;i++){sum+=values[i];}returnsum;";
+        IntSet fingerprints = Winnowing.fingerprints(text);
+
+        assertFalse(fingerprints.isEmpty());
+        assertEquals(fingerprints, Winnowing.fingerprints(text));
+        assertEquals(1, Winnowing.containment(fingerprints, Winnowing.fingerprints(text)), 0);
+    }
+
+    @Test
+    public void testDisjointTexts(){
+        IntSet first = Winnowing.fingerprints("aaaaaaaaaaaaaaaaaaaaaaaaaaaaaa");
+        IntSet second = Winnowing.fingerprints("bbbbbbbbbbbbbbbbbbbbbbbbbbbbbb");
+
+        assertEquals(0, Winnowing.containment(first, second), 0);
+        assertEquals(0, Winnowing.containment(second, first), 0);
+    }
+
+    @Test
+    public void testContainedFragment(){
+        String fragment = "for(inti=0;i<n;i++){sum+=values[i];}";
+        String method = "intsum(int[]values,intn){intsum=0;" + fragment + "returnsum;}";
+
+        // Every window of the fragment is a window of the method too
+        assertEquals(1, Winnowing.containment(Winnowing.fingerprints(fragment), Winnowing.fingerprints(method)), 0);
+    }
+
+    @Test
+    public void testContainmentBounds(){
+        Random random = new Random(42);
+        for (int i = 0; i < 1000; i++) {
+            String first = randomText(random, random.nextInt(40));
+            String common = randomText(random, Winnowing.K + Winnowing.WINDOW - 1);
+            String second = randomText(random, random.nextInt(40));
+            IntSet fragment = Winnowing.fingerprints(first + common);
+            IntSet other = Winnowing.fingerprints(common + second);
+
+            double containment = Winnowing.containment(fragment, other);
+            // A common substring of K + WINDOW - 1 characters always shares a fingerprint
+            assertTrue(containment > 0);
+            assertTrue(containment <= 1);
+        }
+    }
+
+    @Test
+    public void testContainedTextOfGuaranteedLength(){
+        Random random = new Random(42);
+        for (int i = 0; i < 1000; i++) {
+            String fragment = randomText(random, Winnowing.GUARANTEED_LENGTH + random.nextInt(20));
+            String other = randomText(random, random.nextInt(40)) + fragment + randomText(random, random.nextInt(40));
+
+            assertEquals(1, Winnowing.containment(Winnowing.fingerprints(fragment), Winnowing.fingerprints(other)), 0);
+        }
+    }
+
+    private static String randomText(Random random, int length){
+        StringBuilder text = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            text.append((char) ('a' + random.nextInt(4)));
+        }
+        return text.toString();
+    }
+}